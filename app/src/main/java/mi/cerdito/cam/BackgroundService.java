@@ -9,10 +9,8 @@ import android.app.Service;
 import android.app.TaskStackBuilder;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
-import android.hardware.Camera;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -31,17 +29,12 @@ import android.widget.Toast;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
-import java.io.IOException;
-
 public class BackgroundService extends Service {
     public final String TAG = "Webcam";
 
     private LinearLayout mOverlay = null;
     private SurfaceView mSurfaceView;
 
-    private Camera mCamera;
-    private MjpegServer mMjpegServer;
-
     private String mPort;
     private WindowManager.LayoutParams yourparams;
 
@@ -56,94 +49,13 @@ public class BackgroundService extends Service {
             public void surfaceCreated(SurfaceHolder holder) {
                 Log.v(TAG, "surfaceCreated()");
 
-                int cameraId;
-                int previewWidth;
-                int previewHeight;
-                int rangeMin;
-                int rangeMax;
-                int quality;
-                int port;
-
-                SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(BackgroundService.this);
-                String cameraIdString = preferences.getString("settings_camera", null);
-                String previewSizeString = preferences.getString("settings_size", null);
-                String rangeString = preferences.getString("settings_range", null);
-                String qualityString = preferences.getString("settings_quality", "50");
-                String portString = preferences.getString("settings_port", "8080");
-
-                // if failed, it means settings is broken.
-                assert(cameraIdString != null && previewSizeString != null && rangeString != null);
-
-                int xIndex = previewSizeString.indexOf("x");
-                int tildeIndex = rangeString.indexOf("~");
-
-                // if failed, it means settings is broken.
-                assert(xIndex > 0 && tildeIndex > 0);
-
-                try {
-                    cameraId = Integer.parseInt(cameraIdString);
-
-                    previewWidth = Integer.parseInt(previewSizeString.substring(0, xIndex - 1));
-                    previewHeight = Integer.parseInt(previewSizeString.substring(xIndex + 2));
-
-                    rangeMin = Integer.parseInt(rangeString.substring(0, tildeIndex - 1));
-                    rangeMax = Integer.parseInt(rangeString.substring(tildeIndex + 2));
-
-                    quality = Integer.parseInt(qualityString);
-                    port = Integer.parseInt(portString);
-                } catch (NumberFormatException e) {
-                    Log.e(TAG, "Settings is broken");
-                    Toast.makeText(BackgroundService.this, "Settings is broken", Toast.LENGTH_SHORT).show();
-
-                    stopSelf();
-                    return;
-                }
-
-                mCamera = Camera.open(cameraId);
-                if (mCamera == null) {
-                    Log.v(TAG, "Can't open camera" + cameraId);
-
-                    Toast.makeText(BackgroundService.this, getString(R.string.can_not_open_camera),
-                            Toast.LENGTH_SHORT).show();
+                if (!StreamingEngine.getInstance(BackgroundService.this).attach(
+                        BackgroundService.this, holder)) {
                     stopSelf();
-
-                    return;
-                }
-
-                try {
-                    mCamera.setPreviewDisplay(holder);
-                } catch (IOException e) {
-                    Log.v(TAG, "SurfaceHolder is not available");
-
-                    Toast.makeText(BackgroundService.this, "SurfaceHolder is not available",
-                            Toast.LENGTH_SHORT).show();
-                    stopSelf();
-
                     return;
                 }
 
-                Camera.Parameters parameters = mCamera.getParameters();
-                parameters.setPreviewSize(previewWidth, previewHeight);
-                parameters.setPreviewFpsRange(rangeMin, rangeMax);
-                mCamera.setParameters(parameters);
-                mCamera.startPreview();
-
-                JpegFactory jpegFactory = new JpegFactory(previewWidth,
-                        previewHeight, quality);
-                mCamera.setPreviewCallback(jpegFactory);
-
-                mMjpegServer = new MjpegServer(jpegFactory);
-                try {
-                    mMjpegServer.start(port);
-                } catch (IOException e) {
-                    String message = "Port: " + port + " is not available";
-                    Log.v(TAG, message);
-
-                    Toast.makeText(BackgroundService.this, message, Toast.LENGTH_SHORT).show();
-                    stopSelf();
-                }
-
-                Toast.makeText(BackgroundService.this, "Port: " + port, Toast.LENGTH_SHORT).show();
+                Toast.makeText(BackgroundService.this, "Port: " + mPort, Toast.LENGTH_SHORT).show();
             }
 
             public void surfaceChanged(SurfaceHolder holder, int format, int width,
@@ -181,17 +93,10 @@ public class BackgroundService extends Service {
         // Cancel the persistent notification.
         // mNM.cancel(NOTIFICATION);
 
-        if (mCamera != null) {
-            mCamera.setPreviewCallback(null);
-            mCamera.stopPreview();
-            mCamera.release();
-        }
+        // the engine keeps streaming while the foreground activity takes over
+        StreamingEngine.getInstance(this).detach(this);
 
         destroyOverlay();
-
-        if (mMjpegServer != null) {
-            mMjpegServer.close();
-        }
     }
 
     @Override
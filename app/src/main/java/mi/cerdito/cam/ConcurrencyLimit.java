@@ -0,0 +1,55 @@
+package mi.cerdito.cam;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests of one kind that are being served and refuses new ones above a
+ * maximum, so that a burst of clients is answered with "busy" instead of piling up.
+ */
+public class ConcurrencyLimit {
+    private final AtomicInteger mActive = new AtomicInteger();
+    private volatile int mMax;
+    private final int mRetryAfter;
+    
+    /**
+     * @param max number of requests served at the same time
+     * @param retryAfter seconds a refused client is asked to wait before trying again
+     */
+    public ConcurrencyLimit(int max, int retryAfter) {
+        mMax = max;
+        mRetryAfter = retryAfter;
+    }
+    
+    /**
+     * @return true if the request may be served, release() must then be called when it
+     * ends
+     */
+    public boolean tryAcquire() {
+        if (mActive.incrementAndGet() > mMax) {
+            mActive.decrementAndGet();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    public void release() {
+        mActive.decrementAndGet();
+    }
+    
+    public int getActive() {
+        return mActive.get();
+    }
+    
+    public int getMax() {
+        return mMax;
+    }
+    
+    public void setMax(int max) {
+        mMax = Math.max(0, max);
+    }
+    
+    public int getRetryAfter() {
+        return mRetryAfter;
+    }
+}
@@ -0,0 +1,73 @@
+package mi.cerdito.cam;
+
+/**
+ * Per-connection pacing of a stream: frames are handed out in evenly spaced slots of
+ * 1/fps seconds, and frames older than the latency limit are not sent at all.
+ */
+public class FramePacer {
+    private final long mInterval;
+    private final long mMaxLatency;
+    private long mNextSlot = 0;
+    
+    /**
+     * @param fps frames per second, 0 for as fast as frames are produced
+     * @param maxLatency maximum age of a frame in milliseconds, 0 for no limit
+     */
+    public FramePacer(int fps, long maxLatency) {
+        mInterval = fps > 0 ? 1000 / fps : 0;
+        mMaxLatency = maxLatency;
+    }
+    
+    public static FramePacer fromRequest(HttpRequest request) {
+        return new FramePacer(request.getIntParameter("fps", 0),
+                request.getIntParameter("maxlatency", 0));
+    }
+    
+    /**
+     * @param now current time in milliseconds
+     * @return milliseconds until the next slot, 0 if it is due
+     */
+    public long getDelay(long now) {
+        return Math.max(0, mNextSlot - now);
+    }
+    
+    /**
+     * Block until the next slot is due.
+     * @throws InterruptedException
+     */
+    public void awaitSlot() throws InterruptedException {
+        long delay = getDelay(System.currentTimeMillis());
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+    
+    /**
+     * Consume the current slot after a frame has been sent in it.
+     * @param now current time in milliseconds
+     */
+    public void advance(long now) {
+        if (mInterval == 0) {
+            return;
+        }
+        
+        mNextSlot += mInterval;
+        if (mNextSlot <= now) {
+            // fell behind by more than a slot, restart the cadence instead of bursting
+            mNextSlot = now + mInterval;
+        }
+    }
+    
+    /**
+     * @param frame candidate frame
+     * @param now current time in milliseconds
+     * @return true if the frame is older than the latency limit
+     */
+    public boolean isStale(JpegFrame frame, long now) {
+        return mMaxLatency > 0 && now - frame.getCaptureTime() > mMaxLatency;
+    }
+    
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+}
@@ -0,0 +1,98 @@
+package mi.cerdito.cam;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands the latest frame of one producer to any number of consumers by sequence number.
+ * The slot holds a reference to its latest frame and every frame it returns is retained
+ * for the caller.
+ */
+public class FrameSlot {
+    private JpegFrame mLatestFrame = null;
+    private final Object mLock = new Object();
+    private final CopyOnWriteArrayList<JpegProvider.FrameListener> mListeners =
+            new CopyOnWriteArrayList<JpegProvider.FrameListener>();
+    
+    /**
+     * @return the latest frame, to be released by the caller, or null if nothing was
+     * published yet
+     */
+    public JpegFrame getLatestFrame() {
+        synchronized (mLock) {
+            return mLatestFrame != null ? mLatestFrame.retain() : null;
+        }
+    }
+    
+    /**
+     * Publish a frame, taking over the caller's reference. The previous frame is released.
+     */
+    public void publish(JpegFrame frame) {
+        JpegFrame previous;
+        synchronized (mLock) {
+            previous = mLatestFrame;
+            mLatestFrame = frame;
+            mLock.notifyAll();
+        }
+        
+        for (JpegProvider.FrameListener listener : mListeners) {
+            listener.onFrame(frame);
+        }
+        
+        if (previous != null) {
+            previous.release();
+        }
+    }
+    
+    /**
+     * @see JpegProvider#getFrameAfter(long, long)
+     */
+    public JpegFrame getFrameAfter(long sequence, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            while (true) {
+                // retained under the lock, so a publish can not release it in between
+                JpegFrame frame = mLatestFrame;
+                if (frame != null && frame.getSequence() > sequence) {
+                    return frame.retain();
+                }
+                
+                if (timeout == 0) {
+                    mLock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    mLock.wait(remaining);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Wait for a frame newer than the latest one and return a copy of its image.
+     */
+    public byte[] getNewJpeg() throws InterruptedException {
+        long sequence = -1;
+        JpegFrame frame = getLatestFrame();
+        if (frame != null) {
+            sequence = frame.getSequence();
+            frame.release();
+        }
+        
+        frame = getFrameAfter(sequence, 0);
+        try {
+            return frame.toByteArray();
+        } finally {
+            frame.release();
+        }
+    }
+    
+    public void addFrameListener(JpegProvider.FrameListener listener) {
+        mListeners.add(listener);
+    }
+    
+    public void removeFrameListener(JpegProvider.FrameListener listener) {
+        mListeners.remove(listener);
+    }
+}
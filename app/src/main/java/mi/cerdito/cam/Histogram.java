@@ -0,0 +1,124 @@
+package mi.cerdito.cam;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, such as durations in microseconds. Buckets
+ * are log-linear: every power of two is split into SUB_BUCKETS equal steps, so
+ * percentiles are accurate to within 1/SUB_BUCKETS of the value whatever its size.
+ * Recording is a few atomic increments and never allocates, any thread may record.
+ */
+public class Histogram {
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values up to 2^40, about 12 days in microseconds
+    private final static int MAX_BITS = 40;
+    
+    private final AtomicLongArray mBuckets =
+            new AtomicLongArray((MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        
+        mBuckets.incrementAndGet(getIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+    
+    /**
+     * Add the values recorded by another histogram to this one.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            long count = other.mBuckets.get(i);
+            if (count != 0) {
+                mBuckets.addAndGet(i, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        mSum.addAndGet(other.mSum.get());
+        long otherMax = other.mMax.get();
+        long max = mMax.get();
+        while (otherMax > max && !mMax.compareAndSet(max, otherMax)) {
+            max = mMax.get();
+        }
+    }
+    
+    public long getCount() {
+        return mCount.get();
+    }
+    
+    public long getMax() {
+        return mMax.get();
+    }
+    
+    /**
+     * @return mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long count = mCount.get();
+        return count > 0 ? (double) mSum.get() / count : 0;
+    }
+    
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < mBuckets.length(); i++) {
+            total += mBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length(); i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), mMax.get());
+            }
+        }
+        
+        return mMax.get();
+    }
+    
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits > MAX_BITS) {
+            bits = MAX_BITS;
+            value = (1L << MAX_BITS) - 1;
+        }
+        int shift = bits - SUB_BUCKET_BITS - 1;
+        
+        // the top bit is implied, the next SUB_BUCKET_BITS pick the step
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    private static long getUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        
+        int shift = index / SUB_BUCKETS - 1;
+        long step = index % SUB_BUCKETS;
+        
+        return (((long) SUB_BUCKETS + step + 1) << shift) - 1;
+    }
+}
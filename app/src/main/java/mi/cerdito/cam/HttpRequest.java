@@ -0,0 +1,340 @@
+package mi.cerdito.cam;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A parsed HTTP request line: method, path and query parameters, and the headers once
+ * they are read. Headers parsed from bytes are kept as offsets into a copy of those
+ * bytes and only turned into a string when they are looked up.
+ */
+public class HttpRequest {
+    // name start, name end, value start and value end of each header
+    private final static int HEADER_FIELDS = 4;
+    private final static int INITIAL_HEADERS = 16;
+    
+    private final String mMethod;
+    private final String mPath;
+    private final String mVersion;
+    private final HashMap<String, String> mParameters = new HashMap<String, String>();
+    private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+    private byte[] mHeaderData = null;
+    private int[] mHeaderOffsets = null;
+    private int mHeaderCount = 0;
+    
+    private HttpRequest(String method, String path, String version) {
+        mMethod = method;
+        mPath = path;
+        mVersion = version;
+    }
+    
+    /**
+     * Parse a request line such as "GET /?action=stream&fps=5 HTTP/1.1".
+     * @param requestLine first line of the request
+     * @return the request, or null if the line is malformed
+     */
+    public static HttpRequest parse(String requestLine) {
+        String line = requestLine.trim();
+        int methodEnd = line.indexOf(' ');
+        if (methodEnd <= 0) {
+            return null;
+        }
+        
+        int uriStart = methodEnd + 1;
+        while (uriStart < line.length() && line.charAt(uriStart) == ' ') {
+            uriStart++;
+        }
+        int uriEnd = line.indexOf(' ', uriStart);
+        if (uriEnd < 0) {
+            uriEnd = line.length();
+        }
+        if (uriStart == uriEnd) {
+            return null;
+        }
+        
+        String method = line.substring(0, methodEnd);
+        String uri = line.substring(uriStart, uriEnd);
+        String version = uriEnd < line.length() ? line.substring(uriEnd + 1).trim() : "";
+        
+        int queryIndex = uri.indexOf('?');
+        if (queryIndex < 0) {
+            return new HttpRequest(method, uri, version);
+        }
+        
+        HttpRequest request = new HttpRequest(method, uri.substring(0, queryIndex), version);
+        request.parseQuery(uri, queryIndex + 1);
+        
+        return request;
+    }
+    
+    /**
+     * Parse a request line and its headers.
+     * @param data ASCII bytes of the request, ending with the empty line
+     * @param length number of bytes in data
+     * @return the request, or null if it is malformed
+     */
+    public static HttpRequest parse(byte[] data, int length) throws IOException {
+        int lineEnd = findLineEnd(data, 0, length);
+        if (lineEnd < 0) {
+            return null;
+        }
+        
+        HttpRequest request = parse(new String(data, 0, lineEnd, "ASCII"));
+        if (request == null) {
+            return null;
+        }
+        
+        // the caller reuses its buffer for the next request
+        int headerStart = skipLineEnd(data, lineEnd, length);
+        byte[] headers = Arrays.copyOfRange(data, Math.min(headerStart, length), length);
+        int[] offsets = new int[INITIAL_HEADERS * HEADER_FIELDS];
+        int count = 0;
+        int position = 0;
+        while (position < headers.length) {
+            lineEnd = findLineEnd(headers, position, headers.length);
+            if (lineEnd < 0 || lineEnd == position) {
+                break;
+            }
+            
+            int colonIndex = position;
+            while (colonIndex < lineEnd && headers[colonIndex] != ':') {
+                colonIndex++;
+            }
+            if (colonIndex > position && colonIndex < lineEnd) {
+                if ((count + 1) * HEADER_FIELDS > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                int field = count * HEADER_FIELDS;
+                offsets[field] = skipSpace(headers, position, colonIndex);
+                offsets[field + 1] = trimSpace(headers, position, colonIndex);
+                offsets[field + 2] = skipSpace(headers, colonIndex + 1, lineEnd);
+                offsets[field + 3] = trimSpace(headers, colonIndex + 1, lineEnd);
+                count++;
+            }
+            position = skipLineEnd(headers, lineEnd, headers.length);
+        }
+        request.mHeaderData = headers;
+        request.mHeaderOffsets = offsets;
+        request.mHeaderCount = count;
+        
+        return request;
+    }
+    
+    /**
+     * Look for the empty line that ends the headers.
+     * @param data received bytes
+     * @param from index to start looking from, a few bytes before the previous end can
+     * be given so that a terminator split between two reads is found
+     * @param length number of bytes in data
+     * @return index just after the empty line, or -1 if the headers are not complete
+     */
+    public static int findHeaderEnd(byte[] data, int from, int length) {
+        for (int i = Math.max(from, 0); i < length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < length && data[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < length && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return index of the CR or LF that ends the line starting at from, -1 if there is
+     * none
+     */
+    private static int findLineEnd(byte[] data, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (data[i] == '\n') {
+                return i > from && data[i - 1] == '\r' ? i - 1 : i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private static int skipLineEnd(byte[] data, int lineEnd, int length) {
+        return lineEnd < length && data[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+    
+    /**
+     * @return index of the first byte from start on that is not a space or tab, end if
+     * there is none
+     */
+    private static int skipSpace(byte[] data, int start, int end) {
+        while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+            start++;
+        }
+        
+        return start;
+    }
+    
+    /**
+     * @return index just after the last byte before end that is not a space or tab,
+     * start if there is none
+     */
+    private static int trimSpace(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+            end--;
+        }
+        
+        return end;
+    }
+    
+    private void parseQuery(String uri, int start) {
+        while (start < uri.length()) {
+            int end = uri.indexOf('&', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            
+            int equalsIndex = uri.indexOf('=', start);
+            if (equalsIndex < 0 || equalsIndex > end) {
+                if (end > start) {
+                    mParameters.put(decode(uri.substring(start, end)), "");
+                }
+            } else {
+                mParameters.put(decode(uri.substring(start, equalsIndex)),
+                        decode(uri.substring(equalsIndex + 1, end)));
+            }
+            start = end + 1;
+        }
+    }
+    
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return s;
+        } catch (IllegalArgumentException e) {
+            return s;
+        }
+    }
+    
+    /**
+     * Read header lines up to the empty line that ends them.
+     * @param in reader positioned after the request line
+     */
+    public void readHeaders(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex > 0) {
+                mHeaders.put(line.substring(0, colonIndex).trim().toLowerCase(),
+                        line.substring(colonIndex + 1).trim());
+            }
+        }
+    }
+    
+    /**
+     * @param name header name, in any case
+     * @return header value, or null if the header is missing
+     */
+    public String getHeader(String name) {
+        if (mHeaderData == null) {
+            return mHeaders.get(name.toLowerCase());
+        }
+        
+        for (int i = 0; i < mHeaderCount; i++) {
+            int field = i * HEADER_FIELDS;
+            if (matchesName(mHeaderOffsets[field], mHeaderOffsets[field + 1], name)) {
+                int start = mHeaderOffsets[field + 2];
+                char[] value = new char[mHeaderOffsets[field + 3] - start];
+                for (int j = 0; j < value.length; j++) {
+                    value[j] = (char) (mHeaderData[start + j] & 0xff);
+                }
+                return new String(value);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Compare a header name in the header bytes with a name in any case.
+     */
+    private boolean matchesName(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) (mHeaderData[start + i] & 0xff))
+                    != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    public String getMethod() {
+        return mMethod;
+    }
+    
+    public String getPath() {
+        return mPath;
+    }
+    
+    /**
+     * @return protocol of the request line, e.g. "HTTP/1.1", empty for HTTP/0.9
+     */
+    public String getVersion() {
+        return mVersion;
+    }
+    
+    /**
+     * @return value of the "action" query parameter, or null
+     */
+    public String getAction() {
+        return mParameters.get("action");
+    }
+    
+    public String getParameter(String name) {
+        return mParameters.get(name);
+    }
+    
+    /**
+     * @param name parameter name
+     * @param defaultValue value returned if the parameter is missing or not a number
+     * @return parameter value as an integer
+     */
+    public int getIntParameter(String name, int defaultValue) {
+        String value = mParameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * @param name parameter name
+     * @param defaultValue value returned if the parameter is missing or not a number
+     * @return parameter value as a long
+     */
+    public long getLongParameter(String name, long defaultValue) {
+        String value = mParameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
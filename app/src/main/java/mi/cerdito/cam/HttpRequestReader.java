@@ -0,0 +1,116 @@
+package mi.cerdito.cam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reads HTTP requests from a socket into a buffer that is reused for every request of
+ * the connection. The request line and headers must fit in the buffer and arrive before
+ * a deadline, so a client sending them byte by byte is dropped after one timeout
+ * instead of holding a worker.
+ */
+public class HttpRequestReader {
+    public final static int DEFAULT_MAX_HEADER_SIZE = 8192;
+    public final static long DEFAULT_READ_TIMEOUT = 5000;
+    
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final byte[] mBuffer;
+    private int mLength = 0;
+    private boolean mOverflow = false;
+    private boolean mMalformed = false;
+    
+    /**
+     * @param maxHeaderSize maximum size of the request line and headers in bytes
+     */
+    public HttpRequestReader(Socket socket, int maxHeaderSize) throws IOException {
+        mSocket = socket;
+        mIn = socket.getInputStream();
+        mBuffer = new byte[maxHeaderSize];
+    }
+    
+    /**
+     * Read the next request. Bytes received after its headers are kept for the next
+     * call.
+     * @param timeout milliseconds the request line and headers may take to arrive
+     * @return the request, or null if the connection was closed, the deadline passed,
+     * the headers were too large or the request is malformed
+     */
+    public HttpRequest read(long timeout) throws IOException {
+        mOverflow = false;
+        mMalformed = false;
+        long deadline = System.currentTimeMillis() + timeout;
+        int end;
+        try {
+            skipEmptyLines();
+            int scanned = 0;
+            while ((end = HttpRequest.findHeaderEnd(mBuffer, scanned, mLength)) < 0) {
+                if (mLength == mBuffer.length) {
+                    mOverflow = true;
+                    return null;
+                }
+                
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                mSocket.setSoTimeout((int) remaining);
+                int count = mIn.read(mBuffer, mLength, mBuffer.length - mLength);
+                if (count < 0) {
+                    return null;
+                }
+                
+                // the terminator may be split between two reads
+                scanned = Math.max(0, mLength - 2);
+                mLength += count;
+                if (scanned == 0) {
+                    skipEmptyLines();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            if (!mSocket.isClosed()) {
+                mSocket.setSoTimeout(0);
+            }
+        }
+        
+        HttpRequest request = HttpRequest.parse(mBuffer, end);
+        System.arraycopy(mBuffer, end, mBuffer, 0, mLength - end);
+        mLength -= end;
+        mMalformed = request == null;
+        
+        return request;
+    }
+    
+    /**
+     * @return true if the last read failed because the headers did not fit in the
+     * buffer
+     */
+    public boolean isOverflow() {
+        return mOverflow;
+    }
+    
+    /**
+     * @return true if the last read failed because the request line could not be parsed
+     */
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+    
+    /**
+     * Drop the line breaks a client may send between two requests.
+     */
+    private void skipEmptyLines() {
+        int start = 0;
+        while (start < mLength && (mBuffer[start] == '\r' || mBuffer[start] == '\n')) {
+            start++;
+        }
+        if (start > 0) {
+            System.arraycopy(mBuffer, start, mBuffer, 0, mLength - start);
+            mLength -= start;
+        }
+    }
+}
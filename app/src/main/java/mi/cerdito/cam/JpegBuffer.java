@@ -0,0 +1,74 @@
+package mi.cerdito.cam;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable output buffer for the encoders. It only grows, so once it has held the
+ * largest frame, encoding into it does not allocate.
+ */
+public class JpegBuffer extends OutputStream {
+    private byte[] mData;
+    private int mLength = 0;
+    
+    public JpegBuffer(int capacity) {
+        mData = new byte[Math.max(capacity, 1024)];
+    }
+    
+    public byte[] getData() {
+        return mData;
+    }
+    
+    public int getLength() {
+        return mLength;
+    }
+    
+    public void reset() {
+        mLength = 0;
+    }
+    
+    /**
+     * Make room for at least count more bytes.
+     */
+    public void ensureCapacity(int count) {
+        if (mLength + count > mData.length) {
+            byte[] data = new byte[Math.max(mData.length * 2, mLength + count)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+    }
+    
+    @Override
+    public void write(int b) {
+        if (mLength == mData.length) {
+            ensureCapacity(1);
+        }
+        mData[mLength++] = (byte) b;
+    }
+    
+    @Override
+    public void write(byte[] b, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(b, offset, mData, mLength, count);
+        mLength += count;
+    }
+    
+    /**
+     * Append the remaining bytes of a buffer.
+     */
+    public void write(ByteBuffer source) {
+        int count = source.remaining();
+        ensureCapacity(count);
+        source.get(mData, mLength, count);
+        mLength += count;
+    }
+    
+    /**
+     * @return a copy of the buffer contents
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[mLength];
+        System.arraycopy(mData, 0, data, 0, mLength);
+        return data;
+    }
+}
@@ -0,0 +1,567 @@
+package mi.cerdito.cam;
+
+/**
+ * Baseline JPEG encoder for NV21 frames written in plain Java, so it runs and can be
+ * measured on a desktop JVM as well. It uses the integer DCT of the IJG library, 4:2:0
+ * sampling and the standard Huffman tables. Tables and work arrays are allocated once,
+ * so encoding into a reused JpegBuffer does not allocate.
+ *
+ * The entropy coded data can also be produced in strips of MCU rows separated by
+ * restart markers, which is how ParallelJpegEncoder splits a frame across threads.
+ *
+ * An encoder is not thread safe; use one per encoding thread.
+ */
+public class JpegEncoder {
+    private final static int CONST_BITS = 13;
+    private final static int PASS1_BITS = 2;
+    
+    private final static int FIX_0_298631336 = 2446;
+    private final static int FIX_0_390180644 = 3196;
+    private final static int FIX_0_541196100 = 4433;
+    private final static int FIX_0_765366865 = 6270;
+    private final static int FIX_0_899976223 = 7373;
+    private final static int FIX_1_175875602 = 9633;
+    private final static int FIX_1_501321110 = 12299;
+    private final static int FIX_1_847759065 = 15137;
+    private final static int FIX_1_961570560 = 16069;
+    private final static int FIX_2_053119869 = 16819;
+    private final static int FIX_2_562915447 = 20995;
+    private final static int FIX_3_072711026 = 25172;
+    
+    /** Natural order index of each zigzag position. */
+    private final static int[] ZIGZAG = {
+            0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+    
+    private final static int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    
+    private final static int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+    
+    private final static int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private final static int[] DC_LUMA_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private final static int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private final static int[] DC_CHROMA_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    
+    private final static int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private final static int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private final static int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private final static int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    
+    /** Code and length of each Huffman symbol, indexed by symbol. */
+    private final static int[] DC_LUMA_CODES = new int[256];
+    private final static int[] DC_LUMA_SIZES = new int[256];
+    private final static int[] DC_CHROMA_CODES = new int[256];
+    private final static int[] DC_CHROMA_SIZES = new int[256];
+    private final static int[] AC_LUMA_CODES = new int[256];
+    private final static int[] AC_LUMA_SIZES = new int[256];
+    private final static int[] AC_CHROMA_CODES = new int[256];
+    private final static int[] AC_CHROMA_SIZES = new int[256];
+    
+    static {
+        buildHuffmanTable(DC_LUMA_BITS, DC_LUMA_VALUES, DC_LUMA_CODES, DC_LUMA_SIZES);
+        buildHuffmanTable(DC_CHROMA_BITS, DC_CHROMA_VALUES, DC_CHROMA_CODES, DC_CHROMA_SIZES);
+        buildHuffmanTable(AC_LUMA_BITS, AC_LUMA_VALUES, AC_LUMA_CODES, AC_LUMA_SIZES);
+        buildHuffmanTable(AC_CHROMA_BITS, AC_CHROMA_VALUES, AC_CHROMA_CODES, AC_CHROMA_SIZES);
+    }
+    
+    private int mQuality = -1;
+    private final int[] mLumaTable = new int[64];
+    private final int[] mChromaTable = new int[64];
+    private final int[] mLumaDivisors = new int[64];
+    private final int[] mChromaDivisors = new int[64];
+    
+    private final int[] mBlock = new int[64];
+    private final int[] mDc = new int[3];
+    private JpegBuffer mOut;
+    private int mBitBuffer;
+    private int mBitCount;
+    
+    /**
+     * Encode an NV21 frame.
+     * @param data NV21 frame, width and height must be even
+     * @param quality JPEG quality, 1 to 100
+     * @param out buffer to write the JPEG image to; it is reset first
+     * @return length of the image
+     */
+    public int encode(byte[] data, int width, int height, int quality, JpegBuffer out) {
+        out.reset();
+        writeHeaders(out, width, height, quality, 0);
+        encodeStrip(data, width, height, quality, 0, getMcuRows(height), out);
+        writeTrailer(out);
+        
+        return out.getLength();
+    }
+    
+    /**
+     * @return number of MCU rows, each 16 pixel rows high
+     */
+    public static int getMcuRows(int height) {
+        return (height + 15) / 16;
+    }
+    
+    /**
+     * @return number of MCUs in a row, each 16 pixels wide
+     */
+    public static int getMcuColumns(int width) {
+        return (width + 15) / 16;
+    }
+    
+    /**
+     * Append the entropy coded data of a range of MCU rows. DC prediction starts over,
+     * so a strip is a valid restart interval when the headers declare one.
+     * @param firstRow first MCU row
+     * @param rowCount number of MCU rows
+     * @param out buffer to append to
+     */
+    public void encodeStrip(byte[] data, int width, int height, int quality, int firstRow,
+                            int rowCount, JpegBuffer out) {
+        setQuality(quality);
+        mOut = out;
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mDc[0] = mDc[1] = mDc[2] = 0;
+        
+        int mcuColumns = getMcuColumns(width);
+        for (int row = firstRow; row < firstRow + rowCount; row++) {
+            for (int column = 0; column < mcuColumns; column++) {
+                encodeMcu(data, width, height, column * 16, row * 16);
+            }
+        }
+        flushBits();
+        mOut = null;
+    }
+    
+    /**
+     * Write a restart marker between two strips.
+     * @param index number of the interval that ends
+     */
+    public static void writeRestartMarker(JpegBuffer out, int index) {
+        writeMarker(out, 0xD0 + (index & 7));
+    }
+    
+    public static void writeTrailer(JpegBuffer out) {
+        writeMarker(out, 0xD9);
+    }
+    
+    /**
+     * Scale the standard tables like the IJG library does.
+     */
+    private void setQuality(int quality) {
+        quality = Math.max(1, Math.min(quality, 100));
+        if (quality == mQuality) {
+            return;
+        }
+        mQuality = quality;
+        
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            mLumaTable[i] = Math.max(1, Math.min((LUMA_QUANTIZATION[i] * scale + 50) / 100, 255));
+            mChromaTable[i] = Math.max(1, Math.min((CHROMA_QUANTIZATION[i] * scale + 50) / 100, 255));
+            
+            // the DCT output is scaled up by 8
+            mLumaDivisors[i] = mLumaTable[i] * 8;
+            mChromaDivisors[i] = mChromaTable[i] * 8;
+        }
+    }
+    
+    /**
+     * Write the headers up to and including the start of scan.
+     * @param restartInterval MCUs per restart interval, or 0 for none
+     */
+    public void writeHeaders(JpegBuffer out, int width, int height, int quality,
+                             int restartInterval) {
+        setQuality(quality);
+        
+        // SOI and JFIF APP0
+        writeMarker(out, 0xD8);
+        writeMarker(out, 0xE0);
+        writeShort(out, 16);
+        out.write('J');
+        out.write('F');
+        out.write('I');
+        out.write('F');
+        out.write(0);
+        out.write(1);
+        out.write(1);
+        out.write(0);
+        writeShort(out, 1);
+        writeShort(out, 1);
+        out.write(0);
+        out.write(0);
+        
+        // DQT
+        writeMarker(out, 0xDB);
+        writeShort(out, 2 + 2 * 65);
+        out.write(0);
+        for (int i = 0; i < 64; i++) {
+            out.write(mLumaTable[ZIGZAG[i]]);
+        }
+        out.write(1);
+        for (int i = 0; i < 64; i++) {
+            out.write(mChromaTable[ZIGZAG[i]]);
+        }
+        
+        // SOF0, Y sampled 2x2, Cb and Cr 1x1
+        writeMarker(out, 0xC0);
+        writeShort(out, 17);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(3);
+        out.write(1);
+        out.write(0x22);
+        out.write(0);
+        out.write(2);
+        out.write(0x11);
+        out.write(1);
+        out.write(3);
+        out.write(0x11);
+        out.write(1);
+        
+        // DHT
+        writeMarker(out, 0xC4);
+        writeShort(out, 2 + 4 * 17 + DC_LUMA_VALUES.length + AC_LUMA_VALUES.length
+                + DC_CHROMA_VALUES.length + AC_CHROMA_VALUES.length);
+        writeHuffmanTable(out, 0x00, DC_LUMA_BITS, DC_LUMA_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        writeHuffmanTable(out, 0x01, DC_CHROMA_BITS, DC_CHROMA_VALUES);
+        writeHuffmanTable(out, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+        
+        if (restartInterval > 0) {
+            writeMarker(out, 0xDD);
+            writeShort(out, 4);
+            writeShort(out, restartInterval);
+        }
+        
+        // SOS
+        writeMarker(out, 0xDA);
+        writeShort(out, 12);
+        out.write(3);
+        out.write(1);
+        out.write(0x00);
+        out.write(2);
+        out.write(0x11);
+        out.write(3);
+        out.write(0x11);
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+    
+    private static void writeMarker(JpegBuffer out, int marker) {
+        out.write(0xFF);
+        out.write(marker);
+    }
+    
+    private static void writeShort(JpegBuffer out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+    
+    private static void writeHuffmanTable(JpegBuffer out, int id, int[] bits, int[] values) {
+        out.write(id);
+        for (int count : bits) {
+            out.write(count);
+        }
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+    
+    private static void buildHuffmanTable(int[] bits, int[] values, int[] codes, int[] sizes) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code;
+                sizes[values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+    
+    private void encodeMcu(byte[] data, int width, int height, int x, int y) {
+        // an MCU never takes more than a few kilobytes, even with byte stuffing
+        mOut.ensureCapacity(4096);
+        
+        for (int i = 0; i < 4; i++) {
+            loadLuma(data, width, height, x + (i & 1) * 8, y + (i >> 1) * 8);
+            encodeBlock(0, mLumaDivisors, DC_LUMA_CODES, DC_LUMA_SIZES, AC_LUMA_CODES, AC_LUMA_SIZES);
+        }
+        
+        // NV21 stores V before U
+        loadChroma(data, width, height, x / 2, y / 2, 1);
+        encodeBlock(1, mChromaDivisors, DC_CHROMA_CODES, DC_CHROMA_SIZES, AC_CHROMA_CODES, AC_CHROMA_SIZES);
+        loadChroma(data, width, height, x / 2, y / 2, 0);
+        encodeBlock(2, mChromaDivisors, DC_CHROMA_CODES, DC_CHROMA_SIZES, AC_CHROMA_CODES, AC_CHROMA_SIZES);
+    }
+    
+    /**
+     * Load an 8x8 block of the Y plane, level shifted. Pixels past the edge repeat the
+     * last row or column.
+     */
+    private void loadLuma(byte[] data, int width, int height, int x, int y) {
+        int[] block = mBlock;
+        if (x + 8 <= width && y + 8 <= height) {
+            for (int row = 0; row < 8; row++) {
+                int offset = (y + row) * width + x;
+                int i = row * 8;
+                for (int column = 0; column < 8; column++) {
+                    block[i + column] = (data[offset + column] & 0xFF) - 128;
+                }
+            }
+            return;
+        }
+        
+        for (int row = 0; row < 8; row++) {
+            int offset = Math.min(y + row, height - 1) * width;
+            for (int column = 0; column < 8; column++) {
+                block[row * 8 + column] = (data[offset + Math.min(x + column, width - 1)] & 0xFF) - 128;
+            }
+        }
+    }
+    
+    /**
+     * Load an 8x8 block of one chroma plane from the interleaved VU plane.
+     * @param plane 0 for V, 1 for U
+     */
+    private void loadChroma(byte[] data, int width, int height, int x, int y, int plane) {
+        int[] block = mBlock;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int base = width * height + plane;
+        for (int row = 0; row < 8; row++) {
+            int offset = base + Math.min(y + row, chromaHeight - 1) * width;
+            if (x + 8 <= chromaWidth) {
+                for (int column = 0; column < 8; column++) {
+                    block[row * 8 + column] = (data[offset + (x + column) * 2] & 0xFF) - 128;
+                }
+            } else {
+                for (int column = 0; column < 8; column++) {
+                    int cx = Math.min(x + column, chromaWidth - 1);
+                    block[row * 8 + column] = (data[offset + cx * 2] & 0xFF) - 128;
+                }
+            }
+        }
+    }
+    
+    private void encodeBlock(int component, int[] divisors, int[] dcCodes, int[] dcSizes,
+                             int[] acCodes, int[] acSizes) {
+        int[] block = mBlock;
+        forwardDct(block);
+        
+        int dc = quantize(block[0], divisors[0]);
+        int diff = dc - mDc[component];
+        mDc[component] = dc;
+        int size = bitLength(diff);
+        writeBits(dcCodes[size], dcSizes[size]);
+        if (size != 0) {
+            writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+        
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int index = ZIGZAG[k];
+            int value = quantize(block[index], divisors[index]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            
+            while (run > 15) {
+                writeBits(acCodes[0xF0], acSizes[0xF0]);
+                run -= 16;
+            }
+            size = bitLength(value);
+            int symbol = (run << 4) + size;
+            writeBits(acCodes[symbol], acSizes[symbol]);
+            writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acCodes[0x00], acSizes[0x00]);
+        }
+    }
+    
+    private static int quantize(int value, int divisor) {
+        if (value < 0) {
+            return -((-value + (divisor >> 1)) / divisor);
+        }
+        
+        return (value + (divisor >> 1)) / divisor;
+    }
+    
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+    
+    private void writeBits(int bits, int size) {
+        mBitBuffer = (mBitBuffer << size) | (bits & ((1 << size) - 1));
+        mBitCount += size;
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+            mOut.write(b);
+            if (b == 0xFF) {
+                mOut.write(0);
+            }
+            mBitCount -= 8;
+        }
+    }
+    
+    /**
+     * Pad the last byte with one bits.
+     */
+    private void flushBits() {
+        if (mBitCount > 0) {
+            writeBits(0x7F, 8 - mBitCount);
+        }
+        mBitBuffer = 0;
+        mBitCount = 0;
+    }
+    
+    /**
+     * Integer forward DCT of the IJG library (jfdctint.c). The output is scaled up by 8.
+     */
+    private static void forwardDct(int[] block) {
+        for (int i = 0; i < 64; i += 8) {
+            int tmp0 = block[i] + block[i + 7];
+            int tmp7 = block[i] - block[i + 7];
+            int tmp1 = block[i + 1] + block[i + 6];
+            int tmp6 = block[i + 1] - block[i + 6];
+            int tmp2 = block[i + 2] + block[i + 5];
+            int tmp5 = block[i + 2] - block[i + 5];
+            int tmp3 = block[i + 3] + block[i + 4];
+            int tmp4 = block[i + 3] - block[i + 4];
+            
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+            
+            block[i] = (tmp10 + tmp11) << PASS1_BITS;
+            block[i + 4] = (tmp10 - tmp11) << PASS1_BITS;
+            
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            block[i + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            block[i + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+            
+            z1 = tmp4 + tmp7;
+            int z2 = tmp5 + tmp6;
+            int z3 = tmp4 + tmp6;
+            int z4 = tmp5 + tmp7;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+            
+            tmp4 *= FIX_0_298631336;
+            tmp5 *= FIX_2_053119869;
+            tmp6 *= FIX_3_072711026;
+            tmp7 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+            
+            block[i + 7] = descale(tmp4 + z1 + z3, CONST_BITS - PASS1_BITS);
+            block[i + 5] = descale(tmp5 + z2 + z4, CONST_BITS - PASS1_BITS);
+            block[i + 3] = descale(tmp6 + z2 + z3, CONST_BITS - PASS1_BITS);
+            block[i + 1] = descale(tmp7 + z1 + z4, CONST_BITS - PASS1_BITS);
+        }
+        
+        for (int i = 0; i < 8; i++) {
+            int tmp0 = block[i] + block[i + 56];
+            int tmp7 = block[i] - block[i + 56];
+            int tmp1 = block[i + 8] + block[i + 48];
+            int tmp6 = block[i + 8] - block[i + 48];
+            int tmp2 = block[i + 16] + block[i + 40];
+            int tmp5 = block[i + 16] - block[i + 40];
+            int tmp3 = block[i + 24] + block[i + 32];
+            int tmp4 = block[i + 24] - block[i + 32];
+            
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+            
+            block[i] = descale(tmp10 + tmp11, PASS1_BITS);
+            block[i + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+            
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            block[i + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            block[i + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+            
+            z1 = tmp4 + tmp7;
+            int z2 = tmp5 + tmp6;
+            int z3 = tmp4 + tmp6;
+            int z4 = tmp5 + tmp7;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+            
+            tmp4 *= FIX_0_298631336;
+            tmp5 *= FIX_2_053119869;
+            tmp6 *= FIX_3_072711026;
+            tmp7 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+            
+            block[i + 56] = descale(tmp4 + z1 + z3, CONST_BITS + PASS1_BITS);
+            block[i + 40] = descale(tmp5 + z2 + z4, CONST_BITS + PASS1_BITS);
+            block[i + 24] = descale(tmp6 + z2 + z3, CONST_BITS + PASS1_BITS);
+            block[i + 8] = descale(tmp7 + z1 + z4, CONST_BITS + PASS1_BITS);
+        }
+    }
+    
+    private static int descale(int value, int bits) {
+        return (value + (1 << (bits - 1))) >> bits;
+    }
+}
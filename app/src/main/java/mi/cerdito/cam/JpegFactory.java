@@ -4,28 +4,96 @@ import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
+import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 public class JpegFactory implements Camera.PreviewCallback, JpegProvider {
+    public final String TAG = "Webcam";
+    
+    // one buffer held by the encoder, one in the mailbox and two queued for the camera
+    public final static int DEFAULT_BUFFER_COUNT = 4;
+    private final static long SNAPSHOT_TIMEOUT = 2000;
+    private final static int MAX_IDLE_RENDITIONS = 4;
+    private final static int FRAME_POOL_SIZE = 4;
     
     private int mWidth;
     private int mHeight;
-    private int mQuality;
-    private ByteArrayOutputStream mJpegOutputStream;
-    private byte[] mJpegData;
+    private volatile int mQuality;
+    private volatile int mDefaultQuality;
+    private final JpegFramePool mFramePool = new JpegFramePool(FRAME_POOL_SIZE);
+    private JpegEncoder mJavaEncoder = null;
+    private int mEncoderThreads = 1;
+    private ParallelJpegEncoder mParallelEncoder = null;
+    private volatile float mLastEncodeTime = 0;
+    private volatile float mLastThroughput = 0;
+    private final FrameSlot mSlot = new FrameSlot();
+    
+    private Camera mCamera = null;
+    private int mBufferSize = 0;
+    private int mQueuedBuffers = 0;
+    // preview buffers, kept when the capture is restarted
+    private final ArrayList<byte[]> mBuffers = new ArrayList<byte[]>();
+    // buffers handed out by the camera and not returned yet
+    private final ArrayList<byte[]> mHeldBuffers = new ArrayList<byte[]>();
+    private volatile long mDroppedFrames = 0;
+    
+    private final Object mMailbox = new Object();
+    private byte[] mPendingFrame = null;
+    private long mPendingCaptureTime = 0;
+    private long mPendingCaptureNanos = 0;
+    private long mPendingSequence = 0;
+    private int mConsumers = 0;
+    private int mRenditionConsumers = 0;
+    private final ArrayList<Rendition> mRenditions = new ArrayList<Rendition>();
+    private int mTileConsumers = 0;
+    private TileStream mTileStream = null;
+    private ReplayBuffer mReplayBuffer = null;
+    private volatile QualityController mQualityController = null;
+    private EncoderThread mEncoderThread = null;
+    private volatile long mCapturedFrames = 0;
+    private volatile long mEncodedFrames = 0;
+    private volatile long mSkippedFrames = 0;
+    private int mSnapshotWaiters = 0;
+    
+    private long mKeepAliveInterval = 0;
+    private MotionDetector mMotionDetector = null;
+    private volatile float mMotionScore = 0;
+    private volatile long mStaticFrames = 0;
+    
+    // always-on statistics, written by the encoder thread only
+    private final Histogram mEncodeTimes = new Histogram();
+    private volatile long mFullSizeFrames = 0;
+    private volatile long mFullSizeBytes = 0;
+    private volatile int mFrameWidth;
+    private volatile int mFrameHeight;
+    private volatile long mStartTime = 0;
+    
+    // per-stage latencies of the recent frames in microseconds
+    private final RollingHistogram mQueueLatency =
+            new RollingHistogram(RollingHistogram.DEFAULT_WINDOW);
+    private final RollingHistogram mEncodeLatency =
+            new RollingHistogram(RollingHistogram.DEFAULT_WINDOW);
+    private final RollingHistogram mDeliveryLatency =
+            new RollingHistogram(RollingHistogram.DEFAULT_WINDOW);
+    private final RollingHistogram mTotalLatency =
+            new RollingHistogram(RollingHistogram.DEFAULT_WINDOW);
     
     public JpegFactory(int width, int height, int quality) {
         mWidth = width;
         mHeight = height;
+        mFrameWidth = width;
+        mFrameHeight = height;
         mQuality = quality;
-        mJpegData = null;
-        mJpegOutputStream = new ByteArrayOutputStream();
+        mDefaultQuality = quality;
     }
     
     public void setSize(int width, int height) {
         mWidth = width;
         mHeight = height;
+        mFrameWidth = width;
+        mFrameHeight = height;
     }
    
     public int getWidth() {
@@ -38,34 +106,788 @@ public class JpegFactory implements Camera.PreviewCallback, JpegProvider {
     
     public void setQuality(int quality) {
         mQuality = quality;
+        mDefaultQuality = quality;
     }
     
     public int getQuality() {
         return mQuality;
     }
     
+    /**
+     * Encode with the plain Java encoder instead of YuvImage. Call before start().
+     */
+    public void setJavaEncoder(boolean enabled) {
+        mJavaEncoder = enabled ? new JpegEncoder() : null;
+    }
+    
+    /**
+     * Encode each frame in strips on this many threads. Only used with the Java
+     * encoder. Call before start().
+     */
+    public void setEncoderThreads(int threads) {
+        mEncoderThreads = Math.max(1, threads);
+    }
+    
+    /**
+     * @return time taken to encode the last full-size frame in milliseconds, renditions
+     * and tiles are not included
+     */
+    public float getLastEncodeTime() {
+        return mLastEncodeTime;
+    }
+    
+    /**
+     * @return encoder throughput of the last full-size frame in megapixels per second
+     */
+    public float getLastThroughput() {
+        return mLastThroughput;
+    }
+    
+    /**
+     * Leave out frames of a static scene. Consecutive preview frames are compared before
+     * encoding; without motion only one frame per keep-alive interval is encoded.
+     * Call before start().
+     * @param keepAliveInterval interval in milliseconds, 0 to encode every frame
+     */
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        mKeepAliveInterval = keepAliveInterval;
+    }
+    
+    /**
+     * @return motion score of the last preview frame, 0 if motion detection is off
+     */
+    public float getMotionScore() {
+        return mMotionScore;
+    }
+    
+    /**
+     * @return number of preview frames left out because the scene was static
+     */
+    public long getStaticFrames() {
+        return mStaticFrames;
+    }
+    
+    /**
+     * Keep recent full-size frames for replay. The factory then encodes continuously,
+     * as if a client was always connected. Call before start().
+     */
+    public void setReplayBuffer(ReplayBuffer replayBuffer) {
+        mReplayBuffer = replayBuffer;
+    }
+    
+    public ReplayBuffer getReplayBuffer() {
+        return mReplayBuffer;
+    }
+    
+    /**
+     * Let a controller choose quality and size of the full-size frames at runtime.
+     * @param controller controller, or null for the fixed quality
+     */
+    public void setQualityController(QualityController controller) {
+        mQualityController = controller;
+        if (controller != null) {
+            mQuality = controller.getQuality();
+        }
+    }
+    
+    /**
+     * @return description of the current quality, size and encode time
+     */
+    public String getOperatingPoint() {
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            return controller.toString();
+        }
+        
+        return "quality " + mQuality;
+    }
+    
+    public void reportBacklog() {
+        QualityController controller = mQualityController;
+        if (controller != null) {
+            controller.onBacklog();
+        }
+    }
+    
+    /**
+     * Start the encoder thread. Preview frames are only queued by the camera callback
+     * and compressed on this thread.
+     */
+    public synchronized void start() {
+        if (mEncoderThread != null) {
+            return;
+        }
+        
+        if (mJavaEncoder != null && mEncoderThreads > 1) {
+            mParallelEncoder = new ParallelJpegEncoder(mEncoderThreads);
+        }
+        mMotionDetector = mKeepAliveInterval > 0
+                ? new MotionDetector(mWidth, mHeight, mKeepAliveInterval) : null;
+        if (mReplayBuffer != null) {
+            addConsumer();
+        }
+        mStartTime = System.currentTimeMillis();
+        mEncoderThread = new EncoderThread();
+        mEncoderThread.start();
+    }
+    
+    /**
+     * Stop the encoder thread and drop the pending frame.
+     */
+    public void close() {
+        EncoderThread encoderThread;
+        synchronized (this) {
+            encoderThread = mEncoderThread;
+            mEncoderThread = null;
+        }
+        
+        if (encoderThread != null) {
+            if (mReplayBuffer != null) {
+                removeConsumer();
+            }
+            encoderThread.interrupt();
+            try {
+                encoderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mParallelEncoder != null) {
+            mParallelEncoder.close();
+            mParallelEncoder = null;
+        }
+        
+        synchronized (mMailbox) {
+            mPendingFrame = null;
+        }
+    }
+    
+    /**
+     * Start buffered capture: the camera fills a small fixed pool of preview buffers
+     * instead of allocating a new array for every frame. The pool of a previous capture
+     * is reused; its buffers that are still being encoded join the camera's queue when
+     * they come back.
+     * @param camera camera whose preview is configured to getWidth() x getHeight()
+     * @param bufferCount number of buffers in the pool
+     */
+    public synchronized void startBufferedCapture(Camera camera, int bufferCount) {
+        int bufferSize = mWidth * mHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        if (bufferSize != mBufferSize) {
+            mBuffers.clear();
+            mHeldBuffers.clear();
+            mBufferSize = bufferSize;
+        }
+        while (mBuffers.size() < bufferCount) {
+            mBuffers.add(new byte[mBufferSize]);
+        }
+        
+        mCamera = camera;
+        mQueuedBuffers = 0;
+        mDroppedFrames = 0;
+        
+        camera.setPreviewCallbackWithBuffer(this);
+        for (byte[] buffer : mBuffers) {
+            if (!mHeldBuffers.contains(buffer)) {
+                camera.addCallbackBuffer(buffer);
+                mQueuedBuffers++;
+            }
+        }
+    }
+    
+    /**
+     * Stop buffered capture. The camera drops its queue of buffers, the pool is kept for
+     * the next start.
+     */
+    public synchronized void stopBufferedCapture() {
+        if (mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mCamera = null;
+        }
+        mQueuedBuffers = 0;
+    }
+    
+    /**
+     * Get the number of preview frames after which the camera had no free buffer left.
+     * The camera drops the frames that arrive until a buffer comes back, so this is a
+     * lower bound.
+     * @return number of dropped frames
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+    
+    /**
+     * @return number of preview frames delivered by the camera
+     */
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+    
+    /**
+     * @return number of preview frames compressed to JPEG
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+    
+    /**
+     * @return number of preview frames replaced by a newer one before the encoder got to them
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+    
+    /**
+     * @return encode times of full-size frames in microseconds
+     */
+    public Histogram getEncodeTimes() {
+        return mEncodeTimes;
+    }
+    
+    /**
+     * @return average size of the full-size JPEG images in bytes
+     */
+    public long getAverageJpegSize() {
+        long frames = mFullSizeFrames;
+        return frames > 0 ? mFullSizeBytes / frames : 0;
+    }
+    
+    public String getStats() {
+        boolean pending;
+        int consumers;
+        int renditionConsumers;
+        int tileConsumers;
+        synchronized (mMailbox) {
+            pending = mPendingFrame != null;
+            consumers = mConsumers;
+            renditionConsumers = mRenditionConsumers;
+            tileConsumers = mTileConsumers;
+        }
+        int queuedBuffers;
+        synchronized (this) {
+            queuedBuffers = mQueuedBuffers;
+        }
+        long startTime = mStartTime;
+        
+        return "{\"uptime\":" + (startTime > 0 ? System.currentTimeMillis() - startTime : 0) +
+                ",\"frames\":{\"captured\":" + mCapturedFrames +
+                ",\"encoded\":" + mEncodedFrames +
+                ",\"skipped\":" + mSkippedFrames +
+                ",\"dropped\":" + mDroppedFrames +
+                ",\"static\":" + mStaticFrames +
+                ",\"motion_score\":" + mMotionScore + "}" +
+                ",\"encode\":" + StatsReport.toJson(mEncodeTimes,
+                        ",\"throughput\":" + Math.round(mLastThroughput * 10) / 10.0) +
+                ",\"jpeg\":{\"average_size\":" + getAverageJpegSize() +
+                ",\"width\":" + mFrameWidth +
+                ",\"height\":" + mFrameHeight +
+                ",\"operating_point\":" + StatsReport.quote(getOperatingPoint()) + "}" +
+                ",\"queues\":{\"pending_preview\":" + (pending ? 1 : 0) +
+                ",\"camera_buffers\":" + queuedBuffers +
+                ",\"frame_pool\":" + mFramePool.getAllocated() +
+                ",\"consumers\":" + consumers +
+                ",\"rendition_consumers\":" + renditionConsumers +
+                ",\"tile_consumers\":" + tileConsumers + "}" +
+                ",\"latency\":{\"queue\":" + StatsReport.toJson(mQueueLatency.getSnapshot()) +
+                ",\"encode\":" + StatsReport.toJson(mEncodeLatency.getSnapshot()) +
+                ",\"delivery\":" + StatsReport.toJson(mDeliveryLatency.getSnapshot()) +
+                ",\"total\":" + StatsReport.toJson(mTotalLatency.getSnapshot()) + "}}";
+    }
+    
+    public void addConsumer() {
+        synchronized (mMailbox) {
+            mConsumers++;
+            mMailbox.notify();
+        }
+    }
+    
+    public void removeConsumer() {
+        synchronized (mMailbox) {
+            if (mConsumers > 0) {
+                mConsumers--;
+            }
+        }
+    }
+    
+    public void addSnapshotConsumer() {
+        addSnapshotWaiter();
+        addConsumer();
+    }
+    
+    public void removeSnapshotConsumer() {
+        removeConsumer();
+        removeSnapshotWaiter();
+    }
+    
+    /**
+     * Have the next preview frame encoded even if motion gating would leave it out.
+     */
+    void addSnapshotWaiter() {
+        synchronized (mMailbox) {
+            mSnapshotWaiters++;
+        }
+    }
+    
+    void removeSnapshotWaiter() {
+        synchronized (mMailbox) {
+            if (mSnapshotWaiters > 0) {
+                mSnapshotWaiters--;
+            }
+        }
+    }
+    
+    void addConsumer(Rendition rendition) {
+        synchronized (mMailbox) {
+            if (rendition.updateConsumers(1) == 1 && !mRenditions.contains(rendition)) {
+                mRenditions.add(rendition);
+            }
+            mRenditionConsumers++;
+            mMailbox.notify();
+        }
+    }
+    
+    void removeConsumer(Rendition rendition) {
+        synchronized (mMailbox) {
+            if (rendition.getConsumers() == 0) {
+                return;
+            }
+            
+            if (rendition.updateConsumers(-1) == 0) {
+                // the last consumer left, stop producing it
+                mRenditions.remove(rendition);
+            }
+            mRenditionConsumers--;
+        }
+    }
+    
+    void addConsumer(TileStream tileStream) {
+        synchronized (mMailbox) {
+            mTileConsumers++;
+            mMailbox.notify();
+        }
+    }
+    
+    void removeConsumer(TileStream tileStream) {
+        synchronized (mMailbox) {
+            if (mTileConsumers > 0) {
+                mTileConsumers--;
+            }
+        }
+    }
+    
+    public synchronized TileStream getTiles() {
+        if (mTileStream == null) {
+            mTileStream = new TileStream(this, mWidth, mHeight);
+        }
+        
+        return mTileStream;
+    }
+    
+    public JpegProvider getRendition(int width, int quality) {
+        if (width <= 0 || width > mWidth) {
+            width = mWidth;
+        }
+        // the quality controller changes mQuality, a rendition keeps the configured one
+        if (width == mWidth && (quality <= 0
+                || (quality == mDefaultQuality && mQualityController == null))) {
+            return this;
+        }
+        if (quality <= 0) {
+            quality = mDefaultQuality;
+        }
+        quality = Math.min(quality, 100);
+        
+        // NV21 needs even dimensions
+        width = Math.max(2, width & ~1);
+        int height = Math.max(2, (mHeight * width / mWidth) & ~1);
+        
+        synchronized (mMailbox) {
+            for (Rendition rendition : mRenditions) {
+                if (rendition.matches(width, height, quality)) {
+                    return rendition;
+                }
+            }
+            
+            Rendition rendition = new Rendition(this, width, height, quality);
+            mRenditions.add(rendition);
+            dropIdleRenditions();
+            
+            return rendition;
+        }
+    }
+    
+    /**
+     * Forget the oldest renditions nobody consumes beyond MAX_IDLE_RENDITIONS, so that
+     * requests which never add a consumer do not pile up. A forgotten rendition registers
+     * again when a consumer is added. Called with mMailbox held.
+     */
+    private void dropIdleRenditions() {
+        int idle = 0;
+        for (Rendition rendition : mRenditions) {
+            if (rendition.getConsumers() == 0) {
+                idle++;
+            }
+        }
+        
+        Iterator<Rendition> renditions = mRenditions.iterator();
+        while (idle > MAX_IDLE_RENDITIONS && renditions.hasNext()) {
+            if (renditions.next().getConsumers() == 0) {
+                renditions.remove();
+                idle--;
+            }
+        }
+    }
+    
+    public void addFrameListener(FrameListener listener) {
+        mSlot.addFrameListener(listener);
+    }
+    
+    public void removeFrameListener(FrameListener listener) {
+        mSlot.removeFrameListener(listener);
+    }
+    
     public void onPreviewFrame(byte[] data, Camera camera) {
-        YuvImage yuvImage = new YuvImage(data, ImageFormat.NV21, mWidth, mHeight, null);
-        mJpegOutputStream.reset();
-        yuvImage.compressToJpeg(new Rect(0, 0, mWidth, mHeight), mQuality, mJpegOutputStream);
-        mJpegData = mJpegOutputStream.toByteArray();
+        long captureNanos = System.nanoTime();
+        long captureTime = System.currentTimeMillis();
+        Tracer.begin("onPreviewFrame");
+        
+        takeBuffer(data);
+        mCapturedFrames++;
         
-        synchronized (mJpegOutputStream) {
-            mJpegOutputStream.notifyAll();
+        byte[] skipped;
+        boolean idle;
+        synchronized (mMailbox) {
+            skipped = mPendingFrame;
+            mPendingFrame = data;
+            mPendingCaptureTime = captureTime;
+            mPendingCaptureNanos = captureNanos;
+            mPendingSequence++;
+            idle = mConsumers == 0 && mRenditionConsumers == 0;
+            mMailbox.notify();
         }
         
+        if (skipped != null) {
+            // without consumers only the latest raw frame is kept, that is not a skip
+            if (!idle) {
+                mSkippedFrames++;
+            }
+            returnBuffer(skipped);
+        }
+        checkQueuedBuffers();
+        Tracer.end();
     }
     
-    public byte[] getNewJpeg() throws InterruptedException {
-        synchronized (mJpegOutputStream) {
-            mJpegOutputStream.wait();
+    private JpegFrame encode(byte[] data, int width, int height, int quality,
+                             long sequence, long captureTime, long captureNanos) {
+        long start = System.nanoTime();
+        Tracer.begin("encode");
+        
+        // encoded straight into a pooled buffer, which clients send without copying
+        JpegFrame frame = mFramePool.obtain(sequence, captureTime);
+        encode(frame, data, width, height, quality);
+        
+        Tracer.end();
+        long end = System.nanoTime();
+        long elapsed = end - start;
+        
+        frame.setStageTimes(captureNanos, start, end);
+        mQueueLatency.record((start - captureNanos) / 1000);
+        mEncodeLatency.record(elapsed / 1000);
+        
+        return frame;
+    }
+    
+    /**
+     * Record the delivery of a frame, once it has been flushed to a client.
+     */
+    public void reportDelivery(JpegFrame frame) {
+        long encodeEnd = frame.getEncodeEndNanos();
+        if (encodeEnd == 0) {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        mDeliveryLatency.record((now - encodeEnd) / 1000);
+        mTotalLatency.record((now - frame.getCaptureNanos()) / 1000);
+    }
+    
+    /**
+     * Encode a tile of the full-size frame at the current quality. Only called on the
+     * encoder thread.
+     */
+    void encode(JpegFrame frame, byte[] data, int width, int height) {
+        encode(frame, data, width, height, mQuality);
+    }
+    
+    private void encode(JpegFrame frame, byte[] data, int width, int height, int quality) {
+        frame.setMotionScore(mMotionScore);
+        frame.setSize(width, height);
+        JpegBuffer out = frame.getBuffer();
+        if (mParallelEncoder != null) {
+            mParallelEncoder.encode(data, width, height, quality, out);
+        } else if (mJavaEncoder != null) {
+            mJavaEncoder.encode(data, width, height, quality, out);
+        } else {
+            YuvImage yuvImage = new YuvImage(data, ImageFormat.NV21, width, height, null);
+            yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+        }
+    }
+    
+    /**
+     * Get the latest frame of a slot for a snapshot. If it is older than the latest preview
+     * frame, the caller registers as a consumer until the encoder has caught up, which
+     * encodes the preview frame kept while nobody was watching.
+     */
+    JpegFrame getSnapshot(FrameSlot slot, JpegProvider provider) {
+        long captured = getCaptureSequence();
+        
+        JpegFrame frame = slot.getLatestFrame();
+        if (frame == null || frame.getSequence() < captured) {
+            // a snapshot is encoded even if the scene is static
+            provider.addSnapshotConsumer();
+            try {
+                JpegFrame newFrame = slot.getFrameAfter(
+                        frame != null ? frame.getSequence() : -1, SNAPSHOT_TIMEOUT);
+                if (newFrame != null) {
+                    if (frame != null) {
+                        frame.release();
+                    }
+                    frame = newFrame;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                provider.removeSnapshotConsumer();
+            }
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Copy the data of a frame and release it.
+     * @return the JPEG image, or null if frame is null
+     */
+    static byte[] toByteArray(JpegFrame frame) {
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return frame.toByteArray();
+        } finally {
+            frame.release();
+        }
+    }
+    
+    private synchronized void takeBuffer(byte[] data) {
+        if (mCamera == null) {
+            return;
         }
         
-        return mJpegData;
+        if (mBuffers.contains(data)) {
+            mHeldBuffers.add(data);
+        }
+        mQueuedBuffers--;
+    }
+    
+    /**
+     * Count a drop if the camera has no buffer left to fill. Called after the buffer of a
+     * skipped frame has been queued again, which briefly empties the queue while the
+     * encoder is busy.
+     */
+    private synchronized void checkQueuedBuffers() {
+        if (mCamera != null && mQueuedBuffers <= 0) {
+            mDroppedFrames++;
+        }
+    }
+    
+    private synchronized void returnBuffer(byte[] data) {
+        // a buffer of an older pool or one the camera allocated itself is not queued
+        if (!mHeldBuffers.remove(data) || mCamera == null) {
+            return;
+        }
+        
+        mCamera.addCallbackBuffer(data);
+        mQueuedBuffers++;
+    }
+    
+    public byte[] getNewJpeg() throws InterruptedException {
+        return mSlot.getNewJpeg();
     }
     
     public byte[] getJpeg() {
-        return mJpegData;
+        return toByteArray(getSnapshotFrame());
+    }
+    
+    public JpegFrame getSnapshotFrame() {
+        return getSnapshot(mSlot, this);
+    }
+    
+    public JpegFrame getFrame() {
+        return mSlot.getLatestFrame();
+    }
+    
+    public long getCaptureSequence() {
+        synchronized (mMailbox) {
+            return mPendingSequence;
+        }
+    }
+    
+    public JpegFrame getFrameAfter(long sequence, long timeout) throws InterruptedException {
+        return mSlot.getFrameAfter(sequence, timeout);
+    }
+    
+    private final class EncoderThread extends Thread {
+        private final ArrayList<Rendition> mmRenditions = new ArrayList<Rendition>();
+        private final ArrayList<Nv21Scaler> mmScalers = new ArrayList<Nv21Scaler>();
+        
+        private EncoderThread() {
+            setName("JpegFactory EncoderThread" + getId());
+        }
+        
+        @Override
+        public void run() {
+            Log.v(TAG, "Encoder thread started");
+            
+            while (!isInterrupted()) {
+                byte[] data;
+                long sequence;
+                long captureTime;
+                long captureNanos;
+                boolean encodeFullSize;
+                boolean snapshot;
+                TileStream tileStream;
+                
+                try {
+                    synchronized (mMailbox) {
+                        while (mPendingFrame == null || (mConsumers == 0
+                                && mRenditionConsumers == 0 && mTileConsumers == 0)) {
+                            mMailbox.wait();
+                        }
+                        
+                        data = mPendingFrame;
+                        sequence = mPendingSequence;
+                        captureTime = mPendingCaptureTime;
+                        captureNanos = mPendingCaptureNanos;
+                        mPendingFrame = null;
+                        
+                        encodeFullSize = mConsumers > 0;
+                        snapshot = mSnapshotWaiters > 0;
+                        tileStream = mTileConsumers > 0 ? mTileStream : null;
+                        mmRenditions.clear();
+                        for (Rendition rendition : mRenditions) {
+                            if (rendition.getConsumers() > 0) {
+                                mmRenditions.add(rendition);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                
+                MotionDetector detector = mMotionDetector;
+                if (detector != null) {
+                    mMotionScore = detector.update(data, captureTime);
+                    if (!snapshot && detector.isStatic(captureTime)) {
+                        mStaticFrames++;
+                        returnBuffer(data);
+                        continue;
+                    }
+                    detector.onEncode(captureTime);
+                }
+                
+                if (encodeFullSize) {
+                    encodeFullSize(data, sequence, captureTime, captureNanos);
+                }
+                for (Rendition rendition : mmRenditions) {
+                    byte[] scaled = getScaler(rendition.getWidth(), rendition.getHeight())
+                            .scale(data, sequence);
+                    rendition.getSlot().publish(encode(scaled, rendition.getWidth(),
+                            rendition.getHeight(), rendition.getQuality(), sequence, captureTime,
+                            captureNanos));
+                }
+                if (tileStream != null) {
+                    tileStream.update(data, sequence, captureTime);
+                }
+                mEncodedFrames++;
+                
+                returnBuffer(data);
+                dropUnusedScalers(sequence);
+            }
+            
+            Log.v(TAG, "Encoder thread stopped");
+        }
+        
+        private void encodeFullSize(byte[] data, long sequence, long captureTime,
+                                    long captureNanos) {
+            QualityController controller = mQualityController;
+            int width = mWidth;
+            int height = mHeight;
+            int quality = mQuality;
+            if (controller != null) {
+                int scale = controller.getScale();
+                if (scale > 1) {
+                    width = Math.max(2, (mWidth / scale) & ~1);
+                    height = Math.max(2, (mHeight / scale) & ~1);
+                    data = getScaler(width, height).scale(data, sequence);
+                }
+                quality = controller.getQuality();
+            }
+            
+            long start = System.nanoTime();
+            JpegFrame frame = encode(data, width, height, quality, sequence, captureTime,
+                    captureNanos);
+            long elapsed = System.nanoTime() - start;
+            mLastEncodeTime = elapsed / 1000000f;
+            mLastThroughput = elapsed > 0 ? width * height * 1000f / elapsed : 0;
+            mEncodeTimes.record(elapsed / 1000);
+            mFullSizeFrames++;
+            mFullSizeBytes += frame.getLength();
+            mFrameWidth = width;
+            mFrameHeight = height;
+            
+            if (controller != null) {
+                controller.onEncode(elapsed / 1000000f);
+                mQuality = controller.getQuality();
+            }
+            
+            publishFullSize(frame);
+        }
+        
+        private void publishFullSize(JpegFrame frame) {
+            ReplayBuffer replayBuffer = mReplayBuffer;
+            if (replayBuffer != null) {
+                replayBuffer.append(frame);
+            }
+            
+            mSlot.publish(frame);
+        }
+        
+        /**
+         * Get the scaler for a size; renditions of the same size but different quality
+         * share it, so the frame is only scaled once.
+         */
+        private Nv21Scaler getScaler(int width, int height) {
+            for (Nv21Scaler scaler : mmScalers) {
+                if (scaler.getWidth() == width && scaler.getHeight() == height) {
+                    return scaler;
+                }
+            }
+            
+            Nv21Scaler scaler = new Nv21Scaler(mWidth, mHeight, width, height);
+            mmScalers.add(scaler);
+            
+            return scaler;
+        }
+        
+        private void dropUnusedScalers(long sequence) {
+            Iterator<Nv21Scaler> scalers = mmScalers.iterator();
+            while (scalers.hasNext()) {
+                if (scalers.next().getSequence() != sequence) {
+                    scalers.remove();
+                }
+            }
+        }
     }
 
 }
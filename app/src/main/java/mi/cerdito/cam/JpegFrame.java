@@ -0,0 +1,198 @@
+package mi.cerdito.cam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded JPEG frame tagged with the sequence number and the time at which the
+ * preview frame it was made from was captured.
+ *
+ * Frames come from a JpegFramePool and are reference counted: whoever gets a frame from
+ * a provider must release() it when done, and the buffer goes back to the pool after
+ * the last release.
+ */
+public class JpegFrame {
+    private final static ByteBuffer PART_TRAILER = ByteBuffer.wrap(MjpegServer.PART_TRAILER.getBytes());
+    
+    private final JpegFramePool mPool;
+    private final JpegBuffer mBuffer = new JpegBuffer(0);
+    private final AtomicInteger mReferences = new AtomicInteger(0);
+    private volatile long mSequence;
+    private volatile long mCaptureTime;
+    private volatile float mMotionScore = 0;
+    private volatile int mWidth = 0;
+    private volatile int mHeight = 0;
+    private volatile long mCaptureNanos = 0;
+    private volatile long mEncodeStartNanos = 0;
+    private volatile long mEncodeEndNanos = 0;
+    private ByteBuffer mPartHeader = null;
+    private ByteBuffer mPartData = null;
+    
+    JpegFrame(JpegFramePool pool) {
+        mPool = pool;
+    }
+    
+    /**
+     * Prepare a pooled frame for a new image, with one reference held by the caller.
+     */
+    void reset(long sequence, long captureTime) {
+        mSequence = sequence;
+        mCaptureTime = captureTime;
+        mWidth = 0;
+        mHeight = 0;
+        mCaptureNanos = 0;
+        mEncodeStartNanos = 0;
+        mEncodeEndNanos = 0;
+        mBuffer.reset();
+        synchronized (this) {
+            mPartHeader = null;
+            mPartData = null;
+        }
+        mReferences.set(1);
+    }
+    
+    /**
+     * @return buffer the encoder writes the image to
+     */
+    JpegBuffer getBuffer() {
+        return mBuffer;
+    }
+    
+    /**
+     * Take another reference, to be given back with release().
+     * @return this frame
+     */
+    public JpegFrame retain() {
+        mReferences.incrementAndGet();
+        
+        return this;
+    }
+    
+    /**
+     * Give back a reference. The frame must not be used afterwards.
+     */
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0) {
+            mPool.recycle(this);
+        } else if (references < 0) {
+            throw new IllegalStateException("Frame released more often than retained");
+        }
+    }
+    
+    /**
+     * @return monotonic sequence number, increased for every captured preview frame
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+    
+    /**
+     * @return capture time in milliseconds since epoch
+     */
+    public long getCaptureTime() {
+        return mCaptureTime;
+    }
+    
+    void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+    
+    /**
+     * @return width of the image in pixels, 0 if unknown. Frames of
+     * the full-size stream are smaller than the preview while the quality controller
+     * scales them down.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    /**
+     * @return height of the image in pixels, 0 if unknown
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    /**
+     * Stamp the stages the frame went through, as System.nanoTime() values.
+     */
+    void setStageTimes(long captureNanos, long encodeStartNanos, long encodeEndNanos) {
+        mCaptureNanos = captureNanos;
+        mEncodeStartNanos = encodeStartNanos;
+        mEncodeEndNanos = encodeEndNanos;
+    }
+    
+    /**
+     * @return System.nanoTime() on entry of the preview callback, 0 if the frame was not
+     * stamped, e.g. a replayed frame
+     */
+    public long getCaptureNanos() {
+        return mCaptureNanos;
+    }
+    
+    public long getEncodeStartNanos() {
+        return mEncodeStartNanos;
+    }
+    
+    public long getEncodeEndNanos() {
+        return mEncodeEndNanos;
+    }
+    
+    void setMotionScore(float motionScore) {
+        mMotionScore = motionScore;
+    }
+    
+    /**
+     * @return fraction of the image that changed since the previous preview frame, 0 if
+     * motion detection is off
+     */
+    public float getMotionScore() {
+        return mMotionScore;
+    }
+    
+    /**
+     * @return buffer holding the JPEG image in its first getLength() bytes
+     */
+    public byte[] getData() {
+        return mBuffer.getData();
+    }
+    
+    /**
+     * @return length of the JPEG image
+     */
+    public int getLength() {
+        return mBuffer.getLength();
+    }
+    
+    /**
+     * @return a copy of the JPEG image that stays valid after release()
+     */
+    public byte[] toByteArray() {
+        return mBuffer.toByteArray();
+    }
+    
+    /**
+     * Get the frame as a multipart part: sub-header, JPEG data and the closing boundary.
+     * The bytes are built once per frame and shared by every connection, each call only
+     * returns new read-only views for a gathering write.
+     * @return buffers to write in order
+     */
+    public ByteBuffer[] getPart() {
+        synchronized (this) {
+            if (mPartHeader == null) {
+                mPartHeader = ByteBuffer.wrap(MjpegServer.buildPartHeader(getLength(),
+                        mSequence, mCaptureTime, mWidth, mHeight, mMotionScore).getBytes());
+                mPartData = ByteBuffer.wrap(getData(), 0, getLength());
+            }
+        }
+        
+        return new ByteBuffer[] {
+                mPartHeader.asReadOnlyBuffer(),
+                mPartData.asReadOnlyBuffer(),
+                PART_TRAILER.asReadOnlyBuffer()
+        };
+    }
+
+}
@@ -0,0 +1,56 @@
+package mi.cerdito.cam;
+
+import java.util.ArrayList;
+
+/**
+ * Recycles encoded frames and their buffers. A frame goes back to the pool when its
+ * last reference is released, so the heap does not churn with the frame rate or the
+ * number of connected clients.
+ */
+public class JpegFramePool {
+    private final int mMaxIdle;
+    private final ArrayList<JpegFrame> mIdle = new ArrayList<JpegFrame>();
+    private int mAllocated = 0;
+    
+    /**
+     * @param maxIdle number of unused frames kept for reuse, extra ones are dropped
+     */
+    public JpegFramePool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+    
+    /**
+     * Get an empty frame with one reference held by the caller.
+     */
+    public JpegFrame obtain(long sequence, long captureTime) {
+        JpegFrame frame;
+        synchronized (this) {
+            int size = mIdle.size();
+            if (size > 0) {
+                frame = mIdle.remove(size - 1);
+            } else {
+                frame = new JpegFrame(this);
+                mAllocated++;
+            }
+        }
+        
+        frame.reset(sequence, captureTime);
+        
+        return frame;
+    }
+    
+    synchronized void recycle(JpegFrame frame) {
+        if (mIdle.size() < mMaxIdle) {
+            mIdle.add(frame);
+        } else {
+            mAllocated--;
+        }
+    }
+    
+    /**
+     * @return number of frames in use or kept for reuse
+     */
+    public synchronized int getAllocated() {
+        return mAllocated;
+    }
+}
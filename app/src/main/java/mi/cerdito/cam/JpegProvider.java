@@ -1,16 +1,117 @@
 package mi.cerdito.cam;
 
 public interface JpegProvider {
+    
+    public interface FrameListener {
+        /**
+         * Called on the encoder thread for every published frame; must return quickly.
+         * The frame has to be retained to be used after the call.
+         */
+        public void onFrame(JpegFrame frame);
+    }
+    
     /**
      * Get a JPEG image as a byte array. if image is not available, it return null.
      * @return JPEG image as a byte array.
      */
     public byte[] getJpeg();
     
+    /**
+     * Get the same image as getJpeg(), as a frame whose sequence number identifies it.
+     * @return the frame, which the caller must release(), or null if no image is available
+     */
+    public JpegFrame getSnapshotFrame();
+    
+    /**
+     * Register a consumer of the continuous frame stream. While no consumer is registered,
+     * frames are only encoded on demand by getJpeg().
+     */
+    public void addConsumer();
+    
+    /**
+     * Unregister a consumer added with addConsumer().
+     */
+    public void removeConsumer();
+    
+    /**
+     * Register a consumer waiting for a single up-to-date frame, e.g. a snapshot. Unlike
+     * addConsumer(), it gets the next frame encoded even if the scene is static.
+     */
+    public void addSnapshotConsumer();
+    
+    /**
+     * Unregister a consumer added with addSnapshotConsumer().
+     */
+    public void removeSnapshotConsumer();
+    
     /**
      * Wait for a new JPEG image and return it as a byte array
      * @return JPEG image as a byte array.
      * @throws InterruptedException
      */
     public byte[] getNewJpeg() throws InterruptedException;
+    
+    /**
+     * Get the latest encoded frame without waiting or encoding.
+     * @return the latest frame, which the caller must release(), or null if none is
+     * available
+     */
+    public JpegFrame getFrame();
+    
+    /**
+     * @return sequence number of the latest preview frame; a frame with a lower sequence
+     * number is out of date
+     */
+    public long getCaptureSequence();
+    
+    /**
+     * Wait for a frame newer than the one with the given sequence number and return the
+     * newest one. Frames in between are skipped.
+     * @param sequence sequence number of the last frame seen by the caller, -1 for none
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the newest frame, which the caller must release(), or null if the timeout
+     * elapsed
+     * @throws InterruptedException
+     */
+    public JpegFrame getFrameAfter(long sequence, long timeout) throws InterruptedException;
+    
+    /**
+     * Get a provider of the same frames scaled down to another width and encoded at another
+     * quality. Each distinct size and quality is encoded once per frame for all consumers.
+     * @param width width in pixels, 0 for the full width
+     * @param quality JPEG quality, 0 for the default quality
+     * @return provider of the rendition
+     */
+    public JpegProvider getRendition(int width, int quality);
+    
+    /**
+     * Get the tile stream of the full-size frames, see TileStream.
+     */
+    public TileStream getTiles();
+    
+    /**
+     * @return recent full-size frames kept for replay, or null if replay is off
+     */
+    public ReplayBuffer getReplayBuffer();
+    
+    /**
+     * Tell the provider that a consumer could not send a frame before a newer one was
+     * ready, so that it can lower its output rate or size.
+     */
+    public void reportBacklog();
+    
+    /**
+     * Tell the provider that a frame has been flushed to a client, to record the delivery
+     * and end-to-end latency.
+     */
+    public void reportDelivery(JpegFrame frame);
+    
+    /**
+     * @return counters of the encoder as a JSON object, see StatsReport
+     */
+    public String getStats();
+    
+    public void addFrameListener(FrameListener listener);
+    
+    public void removeFrameListener(FrameListener listener);
 }
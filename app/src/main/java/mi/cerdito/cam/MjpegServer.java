@@ -2,127 +2,960 @@ package mi.cerdito.cam;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
 import java.net.Socket;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class MjpegServer extends SimpleServer {
     public final String TAG = "Webcam";
     
     private final static String BOUNDARY_STRING = "boundarystring";
+    
+    final static String STREAM_HEADER = "HTTP/1.0 200 OK\r\n" +
+            "Connection: close\r\n" +
+            "Server: Android Webcam\r\n" +
+            "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
+            "Pragma: no-cache\r\n" + 
+            "Content-Type: multipart/x-mixed-replace;boundary=" + BOUNDARY_STRING + "\r\n" +
+            "\r\n" +
+            "--" + BOUNDARY_STRING + "\r\n";
+    final static String PART_TRAILER = "\r\n--" + BOUNDARY_STRING + "\r\n";
+    final static String DEFAULT_CONTENT = "<html>" +
+            "<head><title>Webcam</title></head>" +
+            "<body><img src='/?action=stream' alt='Camera is not available.' /></body>" +
+            "</html>";
+    final static String TILES_CONTENT = "<html>" +
+            "<head><title>Webcam</title></head>" +
+            "<body style='margin:0'><canvas id='view'></canvas><script>" +
+            "var canvas = document.getElementById('view');" +
+            "var context = canvas.getContext('2d');" +
+            "var pending = new Uint8Array(0);" +
+            "var drawn = Promise.resolve();" +
+            "function draw(message) {" +
+            "  var view = new DataView(message.buffer, message.byteOffset, message.length);" +
+            "  if (canvas.width != view.getUint16(0)) {" +
+            "    canvas.width = view.getUint16(0);" +
+            "    canvas.height = view.getUint16(2);" +
+            "  }" +
+            "  var tiles = [];" +
+            "  for (var i = 0, offset = 6; i < view.getUint16(4); i++) {" +
+            "    var length = view.getUint32(offset + 4);" +
+            "    var blob = new Blob([message.subarray(offset + 8, offset + 8 + length)], {type: 'image/jpeg'});" +
+            "    tiles.push({x: view.getUint16(offset), y: view.getUint16(offset + 2), image: createImageBitmap(blob)});" +
+            "    offset += 8 + length;" +
+            "  }" +
+            "  drawn = drawn.then(function() {" +
+            "    return Promise.all(tiles.map(function(tile) { return tile.image; }));" +
+            "  }).then(function(images) {" +
+            "    for (var i = 0; i < images.length; i++) {" +
+            "      context.drawImage(images[i], tiles[i].x, tiles[i].y);" +
+            "    }" +
+            "  });" +
+            "}" +
+            "function receive(reader) {" +
+            "  return reader.read().then(function(result) {" +
+            "    if (result.done) return;" +
+            "    var data = new Uint8Array(pending.length + result.value.length);" +
+            "    data.set(pending);" +
+            "    data.set(result.value, pending.length);" +
+            "    while (data.length >= 4) {" +
+            "      var length = new DataView(data.buffer, data.byteOffset).getUint32(0);" +
+            "      if (data.length < 4 + length) break;" +
+            "      draw(data.subarray(4, 4 + length));" +
+            "      data = data.subarray(4 + length);" +
+            "    }" +
+            "    pending = data;" +
+            "    return receive(reader);" +
+            "  });" +
+            "}" +
+            "fetch('/?action=tiles' + location.search.replace(/^\\?/, '&')).then(function(response) {" +
+            "  return receive(response.body.getReader());" +
+            "});" +
+            "</script></body>" +
+            "</html>";
+    final static String TILES_HEADER = "HTTP/1.0 200 OK\r\n" +
+            "Connection: close\r\n" +
+            "Server: Android Webcam\r\n" +
+            "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
+            "Pragma: no-cache\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "\r\n";
+    final static long DEFAULT_TILE_REFRESH = 10;
+    final static int DEFAULT_REPLAY_SECONDS = 30;
+    final static String REPLAY_UNAVAILABLE = "Replay is not enabled.";
+    final static String PLAYBACK_UNAVAILABLE = "Recording is not enabled.";
+    final static int WEBSOCKET_HEADER_SIZE = 24;
+    final static int MAX_CONTROL_MESSAGE = 1024;
+    final static int CONTROL_POLL_INTERVAL = 500;
+    // wait for a control message between frames, the shortest socket timeout
+    final static int CONTROL_READ_TIMEOUT = 1;
+    final static int CONTROL_MESSAGE_TIMEOUT = 2000;
+    final static long MAX_PLAYBACK_GAP = 1000;
+    final static String SNAPSHOT_UNAVAILABLE = "Image is not available.";
+    final static long DEFAULT_WRITE_TIMEOUT = 5000;
+    final static long WATCHDOG_INTERVAL = 500;
+    public final static int DEFAULT_MAX_STREAMS = 16;
+    public final static int DEFAULT_MAX_SNAPSHOTS = 8;
+    // workers for the short requests that are not limited, e.g. the page and the stats
+    final static int SPARE_WORKERS = 4;
+    final static int STREAM_RETRY_AFTER = 10;
+    final static int SNAPSHOT_RETRY_AFTER = 1;
+    final static String BUSY_CONTENT = "Server is busy.";
+    final static long KEEP_ALIVE_TIMEOUT = 5000;
+    final static long LONG_POLL_TIMEOUT = 10000;
+    final static String HEADERS_TOO_LARGE = "HTTP/1.0 431 Request Header Fields Too Large\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    final static String BAD_REQUEST = "HTTP/1.0 400 Bad Request\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    final static String METHOD_NOT_ALLOWED = "HTTP/1.0 405 Method Not Allowed\r\n" +
+            "Allow: GET\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
     private JpegProvider mJpegProvider;
+    private volatile SegmentRecorder mRecorder = null;
+    
+    private final CopyOnWriteArrayList<StreamClient> mStreamClients =
+            new CopyOnWriteArrayList<StreamClient>();
+    private volatile long mWriteTimeout = DEFAULT_WRITE_TIMEOUT;
+    private long mStartTime = 0;
+    private Timer mWatchdog = null;
+    private final ConcurrencyLimit mStreams =
+            new ConcurrencyLimit(DEFAULT_MAX_STREAMS, STREAM_RETRY_AFTER);
+    private final ConcurrencyLimit mSnapshots =
+            new ConcurrencyLimit(DEFAULT_MAX_SNAPSHOTS, SNAPSHOT_RETRY_AFTER);
+    private final ConcurrencyLimit mLongPolls =
+            new ConcurrencyLimit(DEFAULT_MAX_SNAPSHOTS, SNAPSHOT_RETRY_AFTER);
+    private final ConcurrencyLimit mIdleConnections =
+            new ConcurrencyLimit(DEFAULT_MAX_SNAPSHOTS, 0);
     
     public MjpegServer(JpegProvider jpegProvider) {
         mJpegProvider = jpegProvider;
+        setConcurrencyLimits(DEFAULT_MAX_STREAMS, DEFAULT_MAX_SNAPSHOTS);
     }
 
     @Override
-    protected void handleConnection(Socket socket) throws IOException {
-        Reader reader = new InputStreamReader(socket.getInputStream(), "ASCII");
-        BufferedReader in = new BufferedReader(reader);
-        String request = in.readLine();
-        if (request == null) {
-            return;
-        }
+    public void start(int port) throws IOException {
+        super.start(port);
+        mStartTime = System.currentTimeMillis();
         
-        StringTokenizer tokens = new StringTokenizer(request);
-        String method = tokens.nextToken();
+        mWatchdog = new Timer("MjpegServer Watchdog", true);
+        mWatchdog.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (StreamClient client : mStreamClients) {
+                    if (client.isWriteOverdue(now, mWriteTimeout)) {
+                        Log.v(TAG, "Write deadline exceeded, close " + client);
+                        client.close();
+                    }
+                }
+            }
+        }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL);
+    }
+    
+    @Override
+    public void close() {
+        if (mWatchdog != null) {
+            mWatchdog.cancel();
+            mWatchdog = null;
+        }
         
-        // only response HTTP GET
-        if (!method.equals("GET")) {
+        super.close();
+    }
+    
+    public void setWriteTimeout(long timeout) {
+        mWriteTimeout = timeout;
+    }
+    
+    public List<StreamClient> getStreamClients() {
+        return new ArrayList<StreamClient>(mStreamClients);
+    }
+    
+    public void setRecorder(SegmentRecorder recorder) {
+        mRecorder = recorder;
+    }
+    
+    /**
+     * Long polls and persistent connections waiting for their next request get as many
+     * places as snapshots, each under its own limit. The worker pool is sized to serve
+     * all of them plus a few short requests; connections beyond it are refused before
+     * their request is read.
+     */
+    public void setConcurrencyLimits(int maxStreams, int maxSnapshots) {
+        mStreams.setMax(maxStreams);
+        mSnapshots.setMax(maxSnapshots);
+        mLongPolls.setMax(maxSnapshots);
+        mIdleConnections.setMax(maxSnapshots);
+        setMaxWorkers(getMaxConnections(mStreams.getMax(), mSnapshots.getMax()));
+    }
+    
+    /**
+     * @return number of connections served at the same time: streams, snapshots, long
+     * polls, idle persistent connections and the short requests
+     */
+    static int getMaxConnections(int maxStreams, int maxSnapshots) {
+        return maxStreams + 3 * maxSnapshots + SPARE_WORKERS;
+    }
+    
+    @Override
+    protected void rejectConnection(Socket socket) throws IOException {
+        byte[] response = buildBusyResponse(SNAPSHOT_RETRY_AFTER).getBytes();
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            OutputStream out = socket.getOutputStream();
+            out.write(response);
+            out.flush();
             return;
         }
         
+        // the answer fits an empty send buffer; whatever does not is cut off rather than
+        // blocking the accept thread
+        channel.configureBlocking(false);
+        try {
+            channel.write(ByteBuffer.wrap(response));
+        } finally {
+            channel.configureBlocking(true);
+        }
+    }
+    
+    @Override
+    protected void handleConnection(Socket socket) throws IOException {
+        HttpRequestReader reader = new HttpRequestReader(socket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
         OutputStream out = socket.getOutputStream();
+        long timeout = HttpRequestReader.DEFAULT_READ_TIMEOUT;
+        boolean keepAlive = true;
+        boolean idle = false;
         
-        String fileName = tokens.nextToken();
-        if (fileName.equals("/?action=stream")) {
-            sendStream(out);
-        } else if (fileName.equals("/?action=snapshot")) {
-            sendSnapshot(out);
-        } else {
-            sendDefault(out);
+        // snapshots, stats and the page are served on persistent connections, every
+        // other request ends its connection; an interrupt means the server is closing
+        while (keepAlive && !Thread.currentThread().isInterrupted()) {
+            HttpRequest httpRequest;
+            try {
+                httpRequest = reader.read(timeout);
+            } finally {
+                if (idle) {
+                    mIdleConnections.release();
+                    idle = false;
+                }
+            }
+            if (httpRequest == null) {
+                if (reader.isOverflow()) {
+                    out.write(HEADERS_TOO_LARGE.getBytes());
+                } else if (reader.isMalformed()) {
+                    out.write(BAD_REQUEST.getBytes());
+                }
+                break;
+            }
+            
+            // only response HTTP GET
+            if (!httpRequest.getMethod().equals("GET")) {
+                out.write(METHOD_NOT_ALLOWED.getBytes());
+                break;
+            }
+            
+            ConcurrencyLimit limit = getLimit(httpRequest);
+            if (limit != null && !limit.tryAcquire()) {
+                Log.v(TAG, "Too many requests, refuse " + httpRequest.getAction());
+                out.write(buildBusyResponse(limit.getRetryAfter()).getBytes());
+                break;
+            }
+            
+            keepAlive = limit != mStreams && isKeepAlive(httpRequest);
+            try {
+                dispatch(socket, out, httpRequest, keepAlive);
+            } finally {
+                if (limit != null) {
+                    limit.release();
+                }
+            }
+            
+            // waiting for the next request holds a worker, the connections that find no
+            // place are closed rather than starving new ones
+            if (keepAlive && !mIdleConnections.tryAcquire()) {
+                Log.v(TAG, "Too many idle connections, close");
+                break;
+            }
+            idle = keepAlive;
+            timeout = KEEP_ALIVE_TIMEOUT;
+        }
+        if (idle) {
+            mIdleConnections.release();
         }
         
-
         out.close();
     }
     
-    private void sendStream(OutputStream out) throws IOException {
+    private void dispatch(Socket socket, OutputStream out, HttpRequest httpRequest,
+                          boolean keepAlive) throws IOException {
+        String action = httpRequest.getAction();
+        if (WebSocket.isUpgrade(httpRequest)) {
+            sendWebSocket(socket, out, httpRequest);
+        } else if ("stream".equals(action)) {
+            sendStream(socket, out, getProvider(mJpegProvider, httpRequest),
+                    FramePacer.fromRequest(httpRequest));
+        } else if ("snapshot".equals(action)) {
+            sendSnapshot(out, getProvider(mJpegProvider, httpRequest), httpRequest, keepAlive);
+        } else if ("stats".equals(action)) {
+            sendStats(out, keepAlive);
+        } else if ("replay".equals(action)) {
+            sendReplay(socket, out, mJpegProvider.getReplayBuffer(),
+                    httpRequest.getIntParameter("seconds", DEFAULT_REPLAY_SECONDS));
+        } else if ("playback".equals(action)) {
+            sendPlayback(socket, out, mRecorder, httpRequest.getLongParameter("from", 0));
+        } else if ("tiles".equals(action)) {
+            sendTiles(socket, out, mJpegProvider.getTiles(),
+                    httpRequest.getIntParameter("refresh", (int) DEFAULT_TILE_REFRESH) * 1000L);
+        } else {
+            sendDefault(out, httpRequest, keepAlive);
+        }
+    }
+    
+    /**
+     * @return true if the client lets the connection stay open after the response: the
+     * default of HTTP/1.1, or asked for with "Connection: keep-alive" in HTTP/1.0
+     */
+    static boolean isKeepAlive(HttpRequest request) {
+        String connection = request.getHeader("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase();
+            if (connection.contains("close")) {
+                return false;
+            }
+            if (connection.contains("keep-alive")) {
+                return true;
+            }
+        }
+        
+        return "HTTP/1.1".equals(request.getVersion());
+    }
+    
+    /**
+     * @return the entity tag of a frame, its capture time and sequence number; the
+     * sequence starts over when the encoder is restarted, the capture time does not
+     */
+    static String getETag(JpegFrame frame) {
+        return "\"" + frame.getCaptureTime() + "-" + frame.getSequence() + "\"";
+    }
+    
+    /**
+     * @param ifNoneMatch value of an If-None-Match header, or null
+     * @return true if the header lists the tag, i.e. the client has the frame already
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        
+        int start = 0;
+        while (start < ifNoneMatch.length()) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = ifNoneMatch.length();
+            }
+            
+            String tag = ifNoneMatch.substring(start, end).trim();
+            if (tag.startsWith("W/")) {
+                // weak comparison, the frames never change
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return the limit a request counts against, null if it is not limited
+     */
+    private ConcurrencyLimit getLimit(HttpRequest request) {
+        String action = request.getAction();
+        if ("snapshot".equals(action)) {
+            // a long poll waits for up to LONG_POLL_TIMEOUT, it must not keep a plain
+            // snapshot out
+            return request.getLongParameter("after", -1) >= 0 ? mLongPolls : mSnapshots;
+        }
+        if (WebSocket.isUpgrade(request) || "stream".equals(action) || "replay".equals(action)
+                || "playback".equals(action) || "tiles".equals(action)) {
+            return mStreams;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * @return the rendition asked for by the width and quality parameters of a request
+     */
+    static JpegProvider getProvider(JpegProvider jpegProvider, HttpRequest request) {
+        int width = request.getIntParameter("width", 0);
+        int quality = request.getIntParameter("quality", 0);
+        if (width == 0 && quality == 0) {
+            return jpegProvider;
+        }
+        
+        return jpegProvider.getRendition(width, quality);
+    }
+    
+    private void sendStream(Socket socket, OutputStream out, JpegProvider provider,
+                            FramePacer pacer) throws IOException {
         Log.v(TAG, "Send stream");
         
-        String header = "HTTP/1.0 200 OK\r\n" +
-                "Connection: close\r\n" +
-                "Server: Android Webcam\r\n" +
-                "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
-                "Pragma: no-cache\r\n" + 
-                "Content-Type: multipart/x-mixed-replace;boundary=" + BOUNDARY_STRING + "\r\n" +
-                "\r\n";
-        out.write(header.getBytes());
+        out.write(STREAM_HEADER.getBytes());
         out.flush();
 
-        out.write(("--" + BOUNDARY_STRING + "\r\n").getBytes());
+        StreamClient client = new StreamClient(socket.getInetAddress().getHostAddress(), socket);
+        mStreamClients.add(client);
+        provider.addConsumer();
+        try {
+            while (true) {
+                JpegFrame frame = null;
 
-        while (true) {
-            byte[] data = null;
-
-            try {
-                data = mJpegProvider.getNewJpeg();
-            } catch (InterruptedException e) {
-                Log.v(TAG, "Fail to get new JPEG image");
+                try {
+                    pacer.awaitSlot();
+                    
+                    // always the newest frame, whatever came in while the last one was written
+                    frame = provider.getFrameAfter(client.getSequence(), 0);
+                    while (pacer.isStale(frame, System.currentTimeMillis())) {
+                        JpegFrame newer = provider.getFrameAfter(frame.getSequence(), 0);
+                        frame.release();
+                        frame = newer;
+                    }
+                } catch (InterruptedException e) {
+                    Log.v(TAG, "Fail to get new JPEG image");
+                    if (frame != null) {
+                        frame.release();
+                    }
 
-                break;
+                    break;
+                }
+                
+                try {
+                    Tracer.begin("writePart");
+                    client.beginWrite(frame);
+                    client.endWrite(writePart(socket, out, frame));
+                    provider.reportDelivery(frame);
+                } finally {
+                    Tracer.end();
+                    frame.release();
+                }
+                
+                JpegFrame latest = provider.getFrame();
+                if (latest != null) {
+                    client.markWriteEnd(latest.getSequence());
+                    if (latest.getSequence() > client.getSequence()) {
+                        // a newer frame came in while this one was written
+                        provider.reportBacklog();
+                    }
+                    latest.release();
+                }
+                pacer.advance(System.currentTimeMillis());
+            }
+        } finally {
+            provider.removeConsumer();
+            mStreamClients.remove(client);
+            Log.v(TAG, "Stream closed: " + client);
+        }
+    }
+    
+    /**
+     * Stream the frames over a WebSocket, each as one binary message: a header of the
+     * sequence number (8 bytes), the capture time in epoch milliseconds (8 bytes), the
+     * JPEG size (4 bytes) and the motion score (4-byte float), all big-endian, followed by
+     * the JPEG image. The client steers
+     * the stream with text messages, see StreamControl; messages that are not understood
+     * are answered with an "error" text message.
+     */
+    private void sendWebSocket(Socket socket, OutputStream out, HttpRequest request)
+            throws IOException {
+        Log.v(TAG, "Send WebSocket stream");
+        
+        out.write(WebSocket.buildUpgradeResponse(request).getBytes());
+        out.flush();
+        
+        WebSocket webSocket = new WebSocket(socket, MAX_CONTROL_MESSAGE);
+        StreamControl control = new StreamControl(mJpegProvider, request);
+        // a client that stalls within a control message must not hold the stream up
+        socket.setSoTimeout(CONTROL_MESSAGE_TIMEOUT);
+        
+        StreamClient client = new StreamClient(socket.getInetAddress().getHostAddress(), socket);
+        mStreamClients.add(client);
+        ByteBuffer header = ByteBuffer.allocate(WEBSOCKET_HEADER_SIZE);
+        JpegProvider provider = null;
+        long sequence = -1;
+        try {
+            while (true) {
+                // control messages are read between frames, while paused this thread
+                // waits for them
+                if (!readControl(webSocket, control,
+                        control.isPaused() ? CONTROL_POLL_INTERVAL : CONTROL_READ_TIMEOUT)) {
+                    break;
+                }
+                if (control.isPaused()) {
+                    if (provider != null) {
+                        // no encoding for this client until it resumes
+                        provider.removeConsumer();
+                        provider = null;
+                    }
+                    continue;
+                }
+                
+                JpegProvider wanted = control.getProvider();
+                if (wanted != provider) {
+                    wanted.addConsumer();
+                    if (provider != null) {
+                        provider.removeConsumer();
+                    }
+                    provider = wanted;
+                }
+                FramePacer pacer = control.getPacer();
+                pacer.awaitSlot();
+                
+                // wake up now and then to read control messages
+                JpegFrame frame = provider.getFrameAfter(sequence, CONTROL_POLL_INTERVAL);
+                if (frame == null) {
+                    continue;
+                }
+                try {
+                    sequence = frame.getSequence();
+                    if (pacer.isStale(frame, System.currentTimeMillis())) {
+                        continue;
+                    }
+                    
+                    header.clear();
+                    header.putLong(frame.getSequence());
+                    header.putLong(frame.getCaptureTime());
+                    header.putInt(frame.getLength());
+                    header.putFloat(frame.getMotionScore());
+                    header.flip();
+                    client.beginWrite(frame);
+                    client.endWrite(webSocket.writeBinary(header,
+                            ByteBuffer.wrap(frame.getData(), 0, frame.getLength())));
+                    provider.reportDelivery(frame);
+                } finally {
+                    frame.release();
+                }
+                
+                JpegFrame latest = provider.getFrame();
+                if (latest != null) {
+                    client.markWriteEnd(latest.getSequence());
+                    if (latest.getSequence() > client.getSequence()) {
+                        provider.reportBacklog();
+                    }
+                    latest.release();
+                }
+                pacer.advance(System.currentTimeMillis());
             }
             
-            String subHeader = "Content-Type: image/jpeg\r\n" +
-                               "Content-Length: " + data.length + "\r\n" +
-                               "\r\n";
-            out.write(subHeader.getBytes());
-            out.write(data);
-            out.write(("\r\n--" + BOUNDARY_STRING + "\r\n").getBytes());
+            webSocket.close(WebSocket.CLOSE_NORMAL);
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            if (provider != null) {
+                provider.removeConsumer();
+            }
+            mStreamClients.remove(client);
+            socket.close();
+            Log.v(TAG, "WebSocket closed: " + client);
+        }
+    }
+    
+    /**
+     * Apply the control messages that have come in, answering the ones that are not
+     * understood with an "error" text message.
+     * @param timeout maximum time in milliseconds to wait for the first message
+     * @return false if the client closed the connection
+     */
+    private static boolean readControl(WebSocket webSocket, StreamControl control,
+                                       int timeout) throws IOException {
+        String message;
+        while ((message = webSocket.readText(timeout)) != null) {
+            if (!control.apply(message)) {
+                webSocket.writeText("error " + message);
+            }
+            timeout = CONTROL_READ_TIMEOUT;
+        }
+        
+        return !webSocket.isClosed();
+    }
+    
+    private long writePart(Socket socket, OutputStream out, JpegFrame frame) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            byte[] header = buildPartHeader(frame.getLength(), frame.getSequence(),
+                    frame.getCaptureTime(), frame.getWidth(), frame.getHeight(),
+                    frame.getMotionScore()).getBytes();
+            byte[] trailer = PART_TRAILER.getBytes();
+            out.write(header);
+            out.write(frame.getData(), 0, frame.getLength());
+            out.write(trailer);
             out.flush();
+            return header.length + frame.getLength() + trailer.length;
+        }
+        
+        ByteBuffer[] part = frame.getPart();
+        ByteBuffer last = part[part.length - 1];
+        long bytes = 0;
+        while (last.hasRemaining()) {
+            bytes += channel.write(part);
         }
+        
+        return bytes;
     }
     
-    private void sendSnapshot(OutputStream out) throws IOException {
+    /**
+     * Send the newest image, or with the after parameter, wait for an image newer than
+     * the given sequence number. Every frame has its own entity tag, so a client
+     * polling with If-None-Match gets 304 Not Modified until there is a new frame.
+     */
+    private void sendSnapshot(OutputStream out, JpegProvider provider, HttpRequest request,
+                              boolean keepAlive) throws IOException {
         Log.v(TAG, "Send snapshot");
         
-        byte[] data = mJpegProvider.getJpeg();
-        if (data != null) {
-            String header = "HTTP/1.0 200 OK\r\n" +
-                            "Content-Type: image/jpeg\r\n" +
-                            "Content-Length: " + data.length + "\r\n" +
-                            "\r\n";
-            out.write(header.getBytes());
-            out.write(data);
-        } else {
-            String content = "Image is not available.";
-            String header = "HTTP/1.0 200 OK\r\n" +
-                            "Content-Type: text/plain\r\n" +
-                            "Content-Lenght: " + content.length() + "\r\n" +
-                            "\r\n";
-            out.write(header.getBytes());
-            out.write(content.getBytes());
+        JpegFrame frame = null;
+        long after = request.getLongParameter("after", -1);
+        if (after >= 0) {
+            provider.addConsumer();
+            try {
+                frame = provider.getFrameAfter(after, LONG_POLL_TIMEOUT);
+            } catch (InterruptedException e) {
+                // the server is closing, the socket is gone
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                provider.removeConsumer();
+            }
+        }
+        if (frame == null) {
+            frame = provider.getSnapshotFrame();
+        }
+        
+        if (frame == null) {
+            out.write(buildResponseHeader("200 OK", "text/plain", SNAPSHOT_UNAVAILABLE.length(),
+                    "", keepAlive).getBytes());
+            out.write(SNAPSHOT_UNAVAILABLE.getBytes());
+            out.flush();
+            return;
         }
         
+        try {
+            String etag = getETag(frame);
+            String headers = buildSnapshotHeaders(frame, etag);
+            if (matchesETag(request.getHeader("if-none-match"), etag)) {
+                out.write(buildResponseHeader("304 Not Modified", null, 0, headers,
+                        keepAlive).getBytes());
+            } else {
+                out.write(buildResponseHeader("200 OK", "image/jpeg", frame.getLength(), headers,
+                        keepAlive).getBytes());
+                out.write(frame.getData(), 0, frame.getLength());
+            }
+            out.flush();
+        } finally {
+            frame.release();
+        }
+    }
+    
+    private void sendStats(OutputStream out, boolean keepAlive) throws IOException {
+        String stats = StatsReport.build(mJpegProvider, getStreamClients(),
+                getNumberOfConnections(), mStartTime);
+        out.write(buildResponseHeader("200 OK", "application/json", stats.length(), "",
+                keepAlive).getBytes());
+        out.write(stats.getBytes());
         out.flush();
     }
-
-    private void sendDefault(OutputStream out) throws IOException {
-        String content = "<html>" +
-                "<head><title>Webcam</title></head>" +
-                "<body><img src='/?action=stream' alt='Camera is not available.' /></body>" +
-                "</html>";
-        String header = "HTTP/1.0 200 OK\r\n" +
-                "Content-Type: text/html\r\n" +
-                "Content-Lenght: " + content.length() + "\r\n" +
-                "\r\n";
-        out.write(header.getBytes());
+    
+    /**
+     * Replay the frames of the last seconds as a stream, with the time between frames
+     * they were captured with. The stream ends with the newest frame at the time of the
+     * request.
+     */
+    private void sendReplay(Socket socket, OutputStream out, ReplayBuffer replayBuffer,
+                            int seconds) throws IOException {
+        if (replayBuffer == null) {
+            out.write(buildResponseHeader("text/plain", REPLAY_UNAVAILABLE.length()).getBytes());
+            out.write(REPLAY_UNAVAILABLE.getBytes());
+            out.flush();
+            return;
+        }
+        
+        Log.v(TAG, "Send replay");
+        
+        out.write(STREAM_HEADER.getBytes());
+        out.flush();
+        
+        StreamClient client = new StreamClient(socket.getInetAddress().getHostAddress(), socket);
+        mStreamClients.add(client);
+        long lastSequence = replayBuffer.getLastSequence();
+        long startCaptureTime = replayBuffer.getLastCaptureTime() - seconds * 1000L;
+        long firstCaptureTime = 0;
+        long playStart = 0;
+        try {
+            while (true) {
+                JpegFrame frame = replayBuffer.read(client.getSequence(), startCaptureTime);
+                if (frame == null) {
+                    break;
+                }
+                
+                try {
+                    if (frame.getSequence() > lastSequence) {
+                        break;
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    if (playStart == 0) {
+                        playStart = now;
+                        firstCaptureTime = frame.getCaptureTime();
+                    }
+                    long delay = playStart + frame.getCaptureTime() - firstCaptureTime - now;
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    
+                    client.beginWrite(frame);
+                    client.endWrite(writePart(socket, out, frame));
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    frame.release();
+                }
+            }
+        } finally {
+            mStreamClients.remove(client);
+            Log.v(TAG, "Replay closed: " + client);
+        }
+    }
+    
+    /**
+     * Play the recording from a time on, with the time between frames they were captured
+     * with. Gaps in the recording are shortened, and the stream follows the recording
+     * once it catches up. The images are sent from the segment files with transferTo().
+     * @param from capture time in epoch milliseconds to start from
+     */
+    private void sendPlayback(Socket socket, OutputStream out, SegmentRecorder recorder,
+                              long from) throws IOException {
+        if (recorder == null) {
+            out.write(buildResponseHeader("text/plain", PLAYBACK_UNAVAILABLE.length()).getBytes());
+            out.write(PLAYBACK_UNAVAILABLE.getBytes());
+            out.flush();
+            return;
+        }
+        
+        Log.v(TAG, "Send playback from " + from);
+        
+        out.write(STREAM_HEADER.getBytes());
+        out.flush();
+        
+        WritableByteChannel channel = socket.getChannel();
+        if (channel == null) {
+            channel = Channels.newChannel(out);
+        }
+        byte[] trailer = PART_TRAILER.getBytes();
+        
+        StreamClient client = new StreamClient(socket.getInetAddress().getHostAddress(), socket);
+        mStreamClients.add(client);
+        SegmentRecorder.Cursor cursor = recorder.seek(from);
+        long lastCaptureTime = 0;
+        long lastPlayTime = 0;
+        try {
+            while (cursor.next()) {
+                if (cursor.hasGap()) {
+                    Log.v(TAG, "Playback fell behind the recording, frames skipped: " + client);
+                }
+                long captureTime = cursor.getCaptureTime();
+                if (lastPlayTime != 0) {
+                    long gap = Math.min(Math.max(captureTime - lastCaptureTime, 0), MAX_PLAYBACK_GAP);
+                    long delay = lastPlayTime + gap - System.currentTimeMillis();
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    lastPlayTime += gap;
+                } else {
+                    lastPlayTime = System.currentTimeMillis();
+                }
+                lastCaptureTime = captureTime;
+                
+                int length = cursor.getLength();
+                byte[] header = buildPartHeader(length).getBytes();
+                client.beginWrite();
+                out.write(header);
+                out.flush();
+                long bytes = cursor.transferTo(channel);
+                out.write(trailer);
+                out.flush();
+                client.endWrite(header.length + bytes + trailer.length);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            cursor.close();
+            mStreamClients.remove(client);
+            Log.v(TAG, "Playback closed: " + client);
+        }
+    }
+    
+    /**
+     * Send tiles that changed as messages described in TileStream.writeMessage(), and
+     * every tile once per refresh interval.
+     * @param refreshInterval interval of full refreshes in milliseconds, 0 for none
+     */
+    private void sendTiles(Socket socket, OutputStream out, TileStream tiles,
+                           long refreshInterval) throws IOException {
+        Log.v(TAG, "Send tiles");
+        
+        out.write(TILES_HEADER.getBytes());
+        out.flush();
+        
+        StreamClient client = new StreamClient(socket.getInetAddress().getHostAddress(), socket);
+        mStreamClients.add(client);
+        tiles.addConsumer();
+        
+        long[] versions = new long[tiles.getTileCount()];
+        Arrays.fill(versions, -1);
+        JpegBuffer message = new JpegBuffer(0);
+        long version = -1;
+        long nextRefresh = System.currentTimeMillis() + refreshInterval;
+        try {
+            while (true) {
+                try {
+                    long timeout = refreshInterval > 0
+                            ? Math.max(1, nextRefresh - System.currentTimeMillis()) : 0;
+                    version = tiles.awaitVersion(version, timeout);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                
+                long now = System.currentTimeMillis();
+                boolean refresh = refreshInterval > 0 && now >= nextRefresh;
+                if (refresh) {
+                    nextRefresh = now + refreshInterval;
+                }
+                if (tiles.writeMessage(message, versions, refresh) == 0) {
+                    continue;
+                }
+                
+                client.beginWrite();
+                out.write(message.getData(), 0, message.getLength());
+                out.flush();
+                client.endWrite(message.getLength());
+            }
+        } finally {
+            tiles.removeConsumer();
+            mStreamClients.remove(client);
+            Log.v(TAG, "Tiles closed: " + client);
+        }
+    }
+    
+    private void sendDefault(OutputStream out, HttpRequest request, boolean keepAlive)
+            throws IOException {
+        String content = "tiles".equals(request.getParameter("view")) ? TILES_CONTENT : DEFAULT_CONTENT;
+        out.write(buildResponseHeader("200 OK", "text/html", content.length(), "",
+                keepAlive).getBytes());
         out.write(content.getBytes());
         out.flush();
     }
+    
+    static String buildResponseHeader(String contentType, int contentLength) {
+        return "HTTP/1.0 200 OK\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "\r\n";
+    }
+    
+    /**
+     * Header of an HTTP/1.1 response.
+     * @param contentType type of the body, null for a response without body
+     * @param headers additional header lines, each ending with CRLF
+     * @param keepAlive true if the connection stays open for another request
+     */
+    static String buildResponseHeader(String status, String contentType, int contentLength,
+                                      String headers, boolean keepAlive) {
+        StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+            header.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        header.append(headers);
+        if (keepAlive) {
+            header.append("Connection: keep-alive\r\n");
+            header.append("Keep-Alive: timeout=").append(KEEP_ALIVE_TIMEOUT / 1000).append("\r\n");
+        } else {
+            header.append("Connection: close\r\n");
+        }
+        header.append("\r\n");
+        
+        return header.toString();
+    }
+    
+    /**
+     * Headers of a snapshot: the entity tag, and the sequence number, capture time, size and
+     * motion score as in the parts of a stream. Clients must revalidate, the image changes with every
+     * frame.
+     */
+    static String buildSnapshotHeaders(JpegFrame frame, String etag) {
+        return "ETag: " + etag + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "X-Frame-Seq: " + frame.getSequence() + "\r\n" +
+                "X-Capture-Time: " + frame.getCaptureTime() + "\r\n" +
+                buildSizeHeader(frame.getWidth(), frame.getHeight()) +
+                "X-Motion-Score: " + frame.getMotionScore() + "\r\n";
+    }
+    
+    static String buildBusyResponse(int retryAfter) {
+        return "HTTP/1.0 503 Service Unavailable\r\n" +
+                "Retry-After: " + retryAfter + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + BUSY_CONTENT.length() + "\r\n" +
+                "\r\n" +
+                BUSY_CONTENT;
+    }
+    
+    static String buildPartHeader(int contentLength) {
+        return "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "\r\n";
+    }
+    
+    /**
+     * Part header with the sequence number and the capture time in epoch milliseconds of
+     * the frame, from which clients can work out the end-to-end delay, its size, and the
+     * fraction of the image that changed since the previous preview frame.
+     */
+    static String buildPartHeader(int contentLength, long sequence, long captureTime,
+                                  int width, int height, float motionScore) {
+        return "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "X-Frame-Seq: " + sequence + "\r\n" +
+                "X-Capture-Time: " + captureTime + "\r\n" +
+                buildSizeHeader(width, height) +
+                "X-Motion-Score: " + motionScore + "\r\n" +
+                "\r\n";
+    }
+    
+    /**
+     * The size of the image, which differs from the preview size while the quality
+     * controller scales the full-size stream down.
+     * @return the header, or an empty string if the size is unknown
+     */
+    static String buildSizeHeader(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return "";
+        }
+        
+        return "X-Frame-Size: " + width + "x" + height + "\r\n";
+    }
 }
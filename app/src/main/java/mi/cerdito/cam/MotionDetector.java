@@ -0,0 +1,106 @@
+package mi.cerdito.cam;
+
+/**
+ * Detects motion by comparing the Y plane of consecutive NV21 frames on a coarse grid,
+ * and decides whether a frame of a static scene can be left out. Frames are sent at
+ * the full rate while there is motion and at the keep-alive rate otherwise.
+ */
+public class MotionDetector {
+    private final static int GRID_STEP = 8;
+    private final static int PIXEL_THRESHOLD = 20;
+    private final static float DEFAULT_THRESHOLD = 0.01f;
+    private final static long MOTION_HOLD = 1000;
+    
+    private final int mWidth;
+    private final int mHeight;
+    private final long mKeepAliveInterval;
+    private float mThreshold = DEFAULT_THRESHOLD;
+    
+    private byte[] mSamples;
+    private byte[] mPreviousSamples;
+    private boolean mHasPrevious = false;
+    private float mScore = 0;
+    private long mLastMotionTime = 0;
+    private long mLastEncodeTime = 0;
+    
+    /**
+     * @param keepAliveInterval longest time between two frames of a static scene in
+     *                          milliseconds
+     */
+    public MotionDetector(int width, int height, long keepAliveInterval) {
+        mWidth = width;
+        mHeight = height;
+        mKeepAliveInterval = keepAliveInterval;
+        
+        int samples = ((width + GRID_STEP - 1) / GRID_STEP) * ((height + GRID_STEP - 1) / GRID_STEP);
+        mSamples = new byte[samples];
+        mPreviousSamples = new byte[samples];
+    }
+    
+    /**
+     * @param threshold fraction of the sampled pixels that has to change to count as
+     *                  motion
+     */
+    public void setThreshold(float threshold) {
+        mThreshold = threshold;
+    }
+    
+    /**
+     * Compare a frame with the previous one.
+     * @param data NV21 frame
+     * @param time capture time in milliseconds
+     * @return motion score, the fraction of the sampled pixels that changed
+     */
+    public float update(byte[] data, long time) {
+        byte[] samples = mSamples;
+        byte[] previous = mPreviousSamples;
+        int changed = 0;
+        int count = 0;
+        for (int y = 0; y < mHeight; y += GRID_STEP) {
+            int offset = y * mWidth;
+            for (int x = 0; x < mWidth; x += GRID_STEP) {
+                byte sample = data[offset + x];
+                samples[count] = sample;
+                if (Math.abs((sample & 0xFF) - (previous[count] & 0xFF)) > PIXEL_THRESHOLD) {
+                    changed++;
+                }
+                count++;
+            }
+        }
+        
+        // the first frame has nothing to compare with
+        mScore = mHasPrevious ? (float) changed / count : 1;
+        mHasPrevious = true;
+        mSamples = previous;
+        mPreviousSamples = samples;
+        
+        if (mScore >= mThreshold) {
+            mLastMotionTime = time;
+        }
+        
+        return mScore;
+    }
+    
+    /**
+     * @return motion score of the last frame
+     */
+    public float getScore() {
+        return mScore;
+    }
+    
+    /**
+     * @return whether the last frame can be left out: there was no motion lately and
+     * the last frame sent is younger than the keep-alive interval
+     */
+    public boolean isStatic(long time) {
+        return time - mLastMotionTime >= MOTION_HOLD
+                && time - mLastEncodeTime < mKeepAliveInterval;
+    }
+    
+    /**
+     * Note that a frame was encoded.
+     */
+    public void onEncode(long time) {
+        mLastEncodeTime = time;
+    }
+}
@@ -0,0 +1,756 @@
+package mi.cerdito.cam;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * MJPEG server engine built on a Selector. Every connection is served by one event-loop
+ * thread with non-blocking writes; new frames wake the event loop up through a frame
+ * listener.
+ */
+public class NioMjpegServer implements StreamingServer, Runnable {
+    public final String TAG = "Webcam";
+    
+    private final static long SNAPSHOT_TIMEOUT = 2000;
+    private final static String NOT_IMPLEMENTED = "HTTP/1.0 501 Not Implemented\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+    
+    private final JpegProvider mJpegProvider;
+    private volatile SimpleServer.Callback mCallback = null;
+    private boolean mHasRecorder = false;
+    
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private volatile boolean mStopServer = true;
+    private Thread mServerThread;
+    
+    private final JpegProvider.FrameListener mWakeup = new JpegProvider.FrameListener() {
+        public void onFrame(JpegFrame frame) {
+            mSelector.wakeup();
+        }
+    };
+    // number of connections waiting for the frames of each provider
+    private final HashMap<JpegProvider, Integer> mSubscribers =
+            new HashMap<JpegProvider, Integer>();
+    private final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+    private volatile int mNumberOfConnections = 0;
+    private final CopyOnWriteArrayList<StreamClient> mStreamClients =
+            new CopyOnWriteArrayList<StreamClient>();
+    private volatile long mWriteTimeout = MjpegServer.DEFAULT_WRITE_TIMEOUT;
+    private long mStartTime = 0;
+    private final ConcurrencyLimit mStreams = new ConcurrencyLimit(
+            MjpegServer.DEFAULT_MAX_STREAMS, MjpegServer.STREAM_RETRY_AFTER);
+    private final ConcurrencyLimit mSnapshots = new ConcurrencyLimit(
+            MjpegServer.DEFAULT_MAX_SNAPSHOTS, MjpegServer.SNAPSHOT_RETRY_AFTER);
+    private final ConcurrencyLimit mLongPolls = new ConcurrencyLimit(
+            MjpegServer.DEFAULT_MAX_SNAPSHOTS, MjpegServer.SNAPSHOT_RETRY_AFTER);
+    private final ConcurrencyLimit mIdleConnections = new ConcurrencyLimit(
+            MjpegServer.DEFAULT_MAX_SNAPSHOTS, 0);
+    
+    public NioMjpegServer(JpegProvider jpegProvider) {
+        mJpegProvider = jpegProvider;
+    }
+    
+    public void start(int port) throws IOException {
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        try {
+            mServerChannel.socket().bind(new InetSocketAddress(port));
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServerChannel.close();
+            mSelector.close();
+            throw e;
+        }
+        
+        if (mHasRecorder) {
+            Log.v(TAG, "Playback is not available on the NIO server");
+        }
+        
+        mStopServer = false;
+        mStartTime = System.currentTimeMillis();
+        mServerThread = new Thread(this);
+        mServerThread.setName("NioMjpegServer EventLoop");
+        mServerThread.start();
+    }
+    
+    public void close() {
+        mStopServer = true;
+        
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+        
+        mCallback = null;
+    }
+    
+    public void setCallback(SimpleServer.Callback callback) {
+        mCallback = callback;
+    }
+    
+    public int getNumberOfConnections() {
+        return mNumberOfConnections;
+    }
+    
+    public void setWriteTimeout(long timeout) {
+        mWriteTimeout = timeout;
+    }
+    
+    /**
+     * Playback is only served by MjpegServer, playback requests are answered with 501.
+     */
+    public void setRecorder(SegmentRecorder recorder) {
+        mHasRecorder = recorder != null;
+    }
+    
+    /**
+     * There are no worker threads, but the number of open connections is bounded the
+     * same way as the workers of MjpegServer.
+     */
+    public void setConcurrencyLimits(int maxStreams, int maxSnapshots) {
+        mStreams.setMax(maxStreams);
+        mSnapshots.setMax(maxSnapshots);
+        mLongPolls.setMax(maxSnapshots);
+        mIdleConnections.setMax(maxSnapshots);
+    }
+    
+    /**
+     * @return whether the request is for a stream only MjpegServer serves
+     */
+    private static boolean isNotImplemented(HttpRequest request) {
+        String action = request.getAction();
+        return WebSocket.isUpgrade(request) || "tiles".equals(action)
+                || "replay".equals(action) || "playback".equals(action);
+    }
+    
+    /**
+     * Wake the event loop up on new frames of a provider. The listener is added once per
+     * provider, however many connections wait for its frames.
+     */
+    private void addWakeup(JpegProvider provider) {
+        Integer subscribers = mSubscribers.get(provider);
+        if (subscribers == null) {
+            provider.addFrameListener(mWakeup);
+            subscribers = 0;
+        }
+        mSubscribers.put(provider, subscribers + 1);
+    }
+    
+    private void removeWakeup(JpegProvider provider) {
+        Integer subscribers = mSubscribers.get(provider);
+        if (subscribers == null) {
+            return;
+        }
+        
+        if (subscribers == 1) {
+            mSubscribers.remove(provider);
+            provider.removeFrameListener(mWakeup);
+        } else {
+            mSubscribers.put(provider, subscribers - 1);
+        }
+    }
+    
+    public List<StreamClient> getStreamClients() {
+        return new ArrayList<StreamClient>(mStreamClients);
+    }
+    
+    public void run() {
+        Log.v(TAG, "NIO server is running");
+        
+        while (!mStopServer) {
+            try {
+                mSelector.select(getSelectTimeout());
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+                break;
+            }
+            
+            if (mStopServer) {
+                break;
+            }
+            
+            dispatchFrame();
+            closeOverdueConnections();
+            
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                
+                if (!key.isValid()) {
+                    continue;
+                }
+                
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+        
+        for (Connection connection : new ArrayList<Connection>(mConnections)) {
+            connection.close();
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        
+        Log.v(TAG, "NIO server stopped");
+    }
+    
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return;
+        }
+        
+        Log.v(TAG, "Accept socket: " + channel.socket().getPort());
+        
+        if (mConnections.size() >= MjpegServer.getMaxConnections(mStreams.getMax(),
+                mSnapshots.getMax())) {
+            Log.v(TAG, "Too many connections, reject " + channel.socket().getPort());
+            try {
+                // a short answer always fits in the empty socket buffer
+                channel.write(ByteBuffer.wrap(MjpegServer.buildBusyResponse(
+                        MjpegServer.SNAPSHOT_RETRY_AFTER).getBytes()));
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+            return;
+        }
+        
+        Connection connection = new Connection(channel);
+        try {
+            connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+        } catch (ClosedChannelException e) {
+            return;
+        }
+        
+        mConnections.add(connection);
+        mNumberOfConnections = mConnections.size();
+        
+        SimpleServer.Callback callback = mCallback;
+        if (callback != null) {
+            callback.onConnect();
+        }
+    }
+    
+    /**
+     * Hand the newest frame to every stream connection that has finished writing the
+     * previous one and whose next pacing slot is due. Busy connections skip it.
+     */
+    private void dispatchFrame() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(mConnections)) {
+            connection.dispatch(now);
+        }
+    }
+    
+    /**
+     * @return how long the event loop may sleep before a watchdog check or a pacing slot
+     */
+    private long getSelectTimeout() {
+        long timeout = MjpegServer.WATCHDOG_INTERVAL;
+        long now = System.currentTimeMillis();
+        for (Connection connection : mConnections) {
+            if (connection.mPacer != null && connection.mPending == null) {
+                long delay = connection.mPacer.getDelay(now);
+                if (delay > 0 && delay < timeout) {
+                    timeout = delay;
+                }
+            }
+        }
+        
+        return timeout;
+    }
+    
+    private void closeOverdueConnections() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(mConnections)) {
+            if (connection.mClient != null && connection.mClient.isWriteOverdue(now, mWriteTimeout)) {
+                Log.v(TAG, "Write deadline exceeded, close " + connection.mClient);
+                connection.close();
+            } else if (connection.mClient == null && connection.mPending != null
+                    && now - connection.mWriteStartTime > mWriteTimeout) {
+                // a snapshot or page the client does not read, it holds its limit
+                Log.v(TAG, "Write deadline exceeded, close " + connection.mmChannel.socket().getPort());
+                connection.close();
+            } else if (!connection.mRequestRead && now >= connection.mRequestDeadline) {
+                // the request did not arrive in time, e.g. a slow-loris client
+                connection.close();
+            }
+        }
+    }
+    
+    private final class Connection {
+        private final SocketChannel mmChannel;
+        private final ByteBuffer mmRequest =
+                ByteBuffer.allocate(HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        private SelectionKey mKey;
+        private long mRequestDeadline;
+        private boolean mRequestRead = false;
+        private int mRequestEnd = 0;
+        
+        private boolean mStreaming = false;
+        private boolean mCloseAfterWrite = false;
+        private boolean mKeepAlive = false;
+        private String mIfNoneMatch = null;
+        private StreamClient mClient = null;
+        private FramePacer mPacer = null;
+        private JpegProvider mProvider = null;
+        private boolean mSnapshotConsumer = false;
+        private long mSnapshotSequence = -1;
+        private long mSnapshotDeadline = 0;
+        private boolean mBacklogReported = false;
+        private ByteBuffer[] mPending = null;
+        private JpegFrame mPendingFrame = null;
+        private long mPendingBytes = 0;
+        private long mWriteStartTime = 0;
+        private ConcurrencyLimit mLimit = null;
+        private boolean mIdle = false;
+        
+        private Connection(SocketChannel channel) {
+            mmChannel = channel;
+            mRequestDeadline = System.currentTimeMillis() + HttpRequestReader.DEFAULT_READ_TIMEOUT;
+        }
+        
+        private void read() throws IOException {
+            if (mStreaming || mCloseAfterWrite) {
+                // nothing more is expected from the client, only watch for the close
+                mmRequest.clear();
+                if (mmChannel.read(mmRequest) < 0) {
+                    close();
+                }
+                return;
+            }
+            
+            if (mRequestRead && !mmRequest.hasRemaining()) {
+                // a pipelined request does not fit behind the one being answered
+                close();
+                return;
+            }
+            
+            // the terminator may be split between two reads
+            int scanned = Math.max(0, mmRequest.position() - 2);
+            if (mmChannel.read(mmRequest) < 0) {
+                close();
+                return;
+            }
+            
+            if (!mRequestRead) {
+                parseRequest(scanned);
+            }
+        }
+        
+        /**
+         * Handle the request in the buffer if its headers are complete. The bytes of the
+         * next request stay in the buffer until the response is written.
+         */
+        private void parseRequest(int scanned) throws IOException {
+            int end = HttpRequest.findHeaderEnd(mmRequest.array(), scanned, mmRequest.position());
+            if (end < 0) {
+                if (!mmRequest.hasRemaining()) {
+                    mRequestRead = true;
+                    mKeepAlive = false;
+                    mCloseAfterWrite = true;
+                    queue(new ByteBuffer[] {
+                            ByteBuffer.wrap(MjpegServer.HEADERS_TOO_LARGE.getBytes()) }, null);
+                }
+                return;
+            }
+            
+            mRequestRead = true;
+            mRequestEnd = end;
+            handleRequest(HttpRequest.parse(mmRequest.array(), end));
+        }
+        
+        /**
+         * Get ready for the next request of a persistent connection.
+         */
+        private void nextRequest() throws IOException {
+            unsubscribe();
+            if (mLimit != null) {
+                mLimit.release();
+                mLimit = null;
+            }
+            
+            byte[] buffer = mmRequest.array();
+            int length = mmRequest.position() - mRequestEnd;
+            System.arraycopy(buffer, mRequestEnd, buffer, 0, length);
+            mmRequest.position(length);
+            mRequestEnd = 0;
+            mRequestRead = false;
+            mRequestDeadline = System.currentTimeMillis() + MjpegServer.KEEP_ALIVE_TIMEOUT;
+            
+            parseRequest(0);
+            if (!mRequestRead) {
+                // connections waiting for their next request count against the
+                // connection bound, the ones that find no place are closed
+                if (!mIdleConnections.tryAcquire()) {
+                    Log.v(TAG, "Too many idle connections, close " + mmChannel.socket().getPort());
+                    close();
+                    return;
+                }
+                mIdle = true;
+            }
+        }
+        
+        private void handleRequest(HttpRequest httpRequest) throws IOException {
+            releaseIdle();
+            
+            // only response HTTP GET
+            if (httpRequest == null || !httpRequest.getMethod().equals("GET")) {
+                mKeepAlive = false;
+                mCloseAfterWrite = true;
+                queue(new ByteBuffer[] { ByteBuffer.wrap((httpRequest == null
+                        ? MjpegServer.BAD_REQUEST : MjpegServer.METHOD_NOT_ALLOWED).getBytes()) },
+                        null);
+                return;
+            }
+            
+            String action = httpRequest.getAction();
+            if (isNotImplemented(httpRequest)) {
+                Log.v(TAG, "Not implemented, refuse " + action);
+                mKeepAlive = false;
+                mCloseAfterWrite = true;
+                queue(new ByteBuffer[] { ByteBuffer.wrap(NOT_IMPLEMENTED.getBytes()) }, null);
+                return;
+            }
+            
+            ConcurrencyLimit limit = null;
+            if ("stream".equals(action)) {
+                limit = mStreams;
+            } else if ("snapshot".equals(action)) {
+                // a long poll must not keep a plain snapshot out
+                limit = httpRequest.getLongParameter("after", -1) >= 0 ? mLongPolls : mSnapshots;
+            }
+            // snapshots, stats and the page are served on persistent connections
+            mKeepAlive = limit != mStreams && MjpegServer.isKeepAlive(httpRequest);
+            mIfNoneMatch = httpRequest.getHeader("if-none-match");
+            if (limit != null) {
+                if (!limit.tryAcquire()) {
+                    Log.v(TAG, "Too many requests, refuse " + action);
+                    mKeepAlive = false;
+                    mCloseAfterWrite = true;
+                    queue(new ByteBuffer[] { ByteBuffer.wrap(MjpegServer.buildBusyResponse(
+                            limit.getRetryAfter()).getBytes()) }, null);
+                    return;
+                }
+                mLimit = limit;
+            }
+            
+            if ("stream".equals(action)) {
+                Log.v(TAG, "Send stream");
+                
+                mStreaming = true;
+                mPacer = FramePacer.fromRequest(httpRequest);
+                subscribe(MjpegServer.getProvider(mJpegProvider, httpRequest));
+                mClient = new StreamClient(mmChannel.socket().getInetAddress().getHostAddress(),
+                        mmChannel);
+                mStreamClients.add(mClient);
+                queue(new ByteBuffer[] { ByteBuffer.wrap(MjpegServer.STREAM_HEADER.getBytes()) },
+                        null);
+            } else if ("snapshot".equals(action)) {
+                Log.v(TAG, "Send snapshot");
+                
+                mCloseAfterWrite = !mKeepAlive;
+                
+                JpegProvider provider = MjpegServer.getProvider(mJpegProvider, httpRequest);
+                long after = httpRequest.getLongParameter("after", -1);
+                JpegFrame frame = provider.getFrame();
+                try {
+                    long now = System.currentTimeMillis();
+                    boolean ready;
+                    if (after >= 0) {
+                        // long poll for a frame newer than the one the client has
+                        ready = frame != null && frame.getSequence() > after;
+                    } else {
+                        // up to date unless a newer preview frame waits for the encoder
+                        ready = frame != null
+                                && frame.getSequence() >= provider.getCaptureSequence();
+                    }
+                    
+                    if (ready) {
+                        sendSnapshot(frame);
+                    } else {
+                        // wait for the encoder without blocking the event loop
+                        if (after >= 0) {
+                            mSnapshotSequence = after;
+                            mSnapshotDeadline = now + MjpegServer.LONG_POLL_TIMEOUT;
+                        } else {
+                            mSnapshotSequence = frame != null ? frame.getSequence() : -1;
+                            mSnapshotDeadline = now + SNAPSHOT_TIMEOUT;
+                            // a snapshot is encoded even if the scene is static
+                            mSnapshotConsumer = true;
+                        }
+                        subscribe(provider);
+                    }
+                } finally {
+                    if (frame != null) {
+                        frame.release();
+                    }
+                }
+            } else if ("stats".equals(action)) {
+                mCloseAfterWrite = !mKeepAlive;
+                queue(buildText("application/json", StatsReport.build(mJpegProvider,
+                        getStreamClients(), mNumberOfConnections, mStartTime)), null);
+            } else {
+                mCloseAfterWrite = !mKeepAlive;
+                queue(buildText("text/html", MjpegServer.DEFAULT_CONTENT), null);
+            }
+        }
+        
+        private ByteBuffer[] buildText(String contentType, String content) {
+            return new ByteBuffer[] {
+                    ByteBuffer.wrap(MjpegServer.buildResponseHeader("200 OK", contentType,
+                            content.length(), "", mKeepAlive).getBytes()),
+                    ByteBuffer.wrap(content.getBytes())
+            };
+        }
+        
+        private void sendSnapshot(JpegFrame frame) throws IOException {
+            mSnapshotDeadline = 0;
+            
+            if (frame == null) {
+                queue(buildText("text/plain", MjpegServer.SNAPSHOT_UNAVAILABLE), null);
+                return;
+            }
+            
+            String etag = MjpegServer.getETag(frame);
+            String headers = MjpegServer.buildSnapshotHeaders(frame, etag);
+            if (MjpegServer.matchesETag(mIfNoneMatch, etag)) {
+                queue(new ByteBuffer[] {
+                        ByteBuffer.wrap(MjpegServer.buildResponseHeader("304 Not Modified", null,
+                                0, headers, mKeepAlive).getBytes())
+                }, null);
+            } else {
+                queue(new ByteBuffer[] {
+                        ByteBuffer.wrap(MjpegServer.buildResponseHeader("200 OK", "image/jpeg",
+                                frame.getLength(), headers, mKeepAlive).getBytes()),
+                        ByteBuffer.wrap(frame.getData(), 0, frame.getLength())
+                }, frame);
+            }
+        }
+        
+        /**
+         * Register as a consumer of a provider, whose new frames then wake the event loop.
+         */
+        private void subscribe(JpegProvider provider) {
+            mProvider = provider;
+            addWakeup(mProvider);
+            if (mSnapshotConsumer) {
+                mProvider.addSnapshotConsumer();
+            } else {
+                mProvider.addConsumer();
+            }
+        }
+        
+        private void unsubscribe() {
+            if (mProvider == null) {
+                return;
+            }
+            
+            if (mSnapshotConsumer) {
+                mProvider.removeSnapshotConsumer();
+            } else {
+                mProvider.removeConsumer();
+            }
+            removeWakeup(mProvider);
+            mProvider = null;
+            mSnapshotConsumer = false;
+        }
+        
+        private void dispatch(long now) {
+            if (mProvider == null) {
+                return;
+            }
+            
+            JpegFrame frame = mProvider.getFrame();
+            try {
+                if (mPending != null) {
+                    if (mStreaming && !mBacklogReported && frame != null
+                            && frame.getSequence() > mClient.getSequence()) {
+                        // a newer frame is ready while this one is still being written
+                        mBacklogReported = true;
+                        mProvider.reportBacklog();
+                    }
+                } else if (mStreaming) {
+                    if (frame != null && isReady(frame, now)) {
+                        offer(frame);
+                    }
+                } else if (mSnapshotDeadline != 0) {
+                    if (frame != null && frame.getSequence() > mSnapshotSequence) {
+                        sendSnapshot(frame);
+                    } else if (now >= mSnapshotDeadline) {
+                        sendSnapshot(frame);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+        
+        private boolean isReady(JpegFrame frame, long now) {
+            return mStreaming && mPending == null
+                    && frame.getSequence() > mClient.getSequence()
+                    && mPacer.getDelay(now) == 0
+                    && !mPacer.isStale(frame, now);
+        }
+        
+        private void offer(JpegFrame frame) {
+            mClient.beginWrite(frame);
+            mBacklogReported = false;
+            try {
+                queue(frame.getPart(), frame);
+            } catch (IOException e) {
+                close();
+            }
+        }
+        
+        /**
+         * Start writing buffers. The frame their data belongs to, if any, is retained
+         * until the write completes.
+         */
+        private void queue(ByteBuffer[] buffers, JpegFrame frame) throws IOException {
+            mPending = buffers;
+            mPendingFrame = frame != null ? frame.retain() : null;
+            mPendingBytes = 0;
+            mWriteStartTime = System.currentTimeMillis();
+            write();
+        }
+        
+        private void write() throws IOException {
+            if (mPending == null) {
+                mKey.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            
+            mPendingBytes += mmChannel.write(mPending);
+            if (mPending[mPending.length - 1].hasRemaining()) {
+                // socket buffer is full, continue when it drains
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            
+            mPending = null;
+            if (mPendingFrame != null && mStreaming) {
+                mProvider.reportDelivery(mPendingFrame);
+            }
+            releasePendingFrame();
+            mKey.interestOps(SelectionKey.OP_READ);
+            
+            if (mCloseAfterWrite) {
+                close();
+                return;
+            }
+            if (mKeepAlive) {
+                nextRequest();
+                return;
+            }
+            if (mClient == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (mClient.getSequence() >= 0) {
+                // the stream header is not a frame
+                mClient.endWrite(mPendingBytes);
+                mPacer.advance(now);
+                JpegFrame latest = mProvider.getFrame();
+                if (latest != null) {
+                    mClient.markWriteEnd(latest.getSequence());
+                    latest.release();
+                }
+            }
+            
+            // catch up with a frame that arrived while this connection was busy
+            dispatch(now);
+        }
+        
+        private void releaseIdle() {
+            if (mIdle) {
+                mIdleConnections.release();
+                mIdle = false;
+            }
+        }
+        
+        private void releasePendingFrame() {
+            if (mPendingFrame != null) {
+                mPendingFrame.release();
+                mPendingFrame = null;
+            }
+        }
+        
+        private void close() {
+            if (!mConnections.remove(this)) {
+                return;
+            }
+            releasePendingFrame();
+            releaseIdle();
+            if (mLimit != null) {
+                mLimit.release();
+            }
+            mNumberOfConnections = mConnections.size();
+            if (mClient != null) {
+                mStreamClients.remove(mClient);
+                Log.v(TAG, "Stream closed: " + mClient);
+            }
+            unsubscribe();
+            
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            try {
+                mmChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+            
+            SimpleServer.Callback callback = mCallback;
+            if (callback != null) {
+                callback.onDisconnect();
+            }
+        }
+    }
+}
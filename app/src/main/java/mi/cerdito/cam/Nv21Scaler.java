@@ -0,0 +1,91 @@
+package mi.cerdito.cam;
+
+/**
+ * Nearest-neighbour downscaler for NV21 frames. Column offsets are computed once, so
+ * scaling a frame is a plain table-driven copy into a reused output buffer.
+ */
+public class Nv21Scaler {
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mLumaColumns;
+    private final int[] mChromaColumns;
+    private final byte[] mOutput;
+    private long mSequence = -1;
+    
+    /**
+     * @param sourceWidth source width, must be even
+     * @param sourceHeight source height, must be even
+     * @param width target width, must be even and not larger than the source
+     * @param height target height, must be even and not larger than the source
+     */
+    public Nv21Scaler(int sourceWidth, int sourceHeight, int width, int height) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mWidth = width;
+        mHeight = height;
+        
+        mLumaColumns = new int[width];
+        for (int x = 0; x < width; x++) {
+            mLumaColumns[x] = x * sourceWidth / width;
+        }
+        
+        // interleaved V/U pairs, one pair per two pixels
+        mChromaColumns = new int[width / 2];
+        for (int x = 0; x < width / 2; x++) {
+            mChromaColumns[x] = 2 * (x * (sourceWidth / 2) / (width / 2));
+        }
+        
+        mOutput = new byte[width * height * 3 / 2];
+    }
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    /**
+     * Scale a frame. The result is cached, so scaling the same frame again is free.
+     * @param source NV21 frame of the source size
+     * @param sequence sequence number of the frame
+     * @return scaled NV21 frame, valid until the next call
+     */
+    public byte[] scale(byte[] source, long sequence) {
+        if (sequence == mSequence) {
+            return mOutput;
+        }
+        mSequence = sequence;
+        
+        int out = 0;
+        for (int y = 0; y < mHeight; y++) {
+            int row = (y * mSourceHeight / mHeight) * mSourceWidth;
+            for (int x = 0; x < mWidth; x++) {
+                mOutput[out++] = source[row + mLumaColumns[x]];
+            }
+        }
+        
+        int chroma = mSourceWidth * mSourceHeight;
+        int chromaHeight = mHeight / 2;
+        for (int y = 0; y < chromaHeight; y++) {
+            int row = chroma + (y * (mSourceHeight / 2) / chromaHeight) * mSourceWidth;
+            for (int x = 0; x < mChromaColumns.length; x++) {
+                int column = row + mChromaColumns[x];
+                mOutput[out++] = source[column];
+                mOutput[out++] = source[column + 1];
+            }
+        }
+        
+        return mOutput;
+    }
+    
+    /**
+     * @return sequence number of the last scaled frame
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+}
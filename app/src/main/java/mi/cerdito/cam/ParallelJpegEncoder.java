@@ -0,0 +1,141 @@
+package mi.cerdito.cam;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Encodes a frame in horizontal strips of MCU rows on several threads. The strips are
+ * joined with restart markers, so the result is a single baseline JPEG image. The
+ * calling thread encodes the last strip itself.
+ */
+public class ParallelJpegEncoder {
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+    private final JpegEncoder mHeaderEncoder = new JpegEncoder();
+    private final Strip[] mStrips;
+    
+    private final Object mLock = new Object();
+    private int mRemaining = 0;
+    
+    /**
+     * @param threads number of strips encoded at the same time, including the caller
+     */
+    public ParallelJpegEncoder(int threads) {
+        mThreads = Math.max(1, threads);
+        mExecutor = mThreads > 1 ? Executors.newFixedThreadPool(mThreads - 1) : null;
+        mStrips = new Strip[mThreads];
+        for (int i = 0; i < mThreads; i++) {
+            mStrips[i] = new Strip();
+        }
+    }
+    
+    public int getThreads() {
+        return mThreads;
+    }
+    
+    /**
+     * Encode an NV21 frame, see JpegEncoder.encode().
+     * @return length of the image
+     */
+    public int encode(byte[] data, int width, int height, int quality, JpegBuffer out) {
+        int mcuRows = JpegEncoder.getMcuRows(height);
+        int rowsPerStrip = (mcuRows + mThreads - 1) / mThreads;
+        int strips = (mcuRows + rowsPerStrip - 1) / rowsPerStrip;
+        
+        synchronized (mLock) {
+            mRemaining = strips - 1;
+        }
+        for (int i = 0; i < strips; i++) {
+            Strip strip = mStrips[i];
+            strip.mmData = data;
+            strip.mmWidth = width;
+            strip.mmHeight = height;
+            strip.mmQuality = quality;
+            strip.mmFirstRow = i * rowsPerStrip;
+            strip.mmRowCount = Math.min(rowsPerStrip, mcuRows - strip.mmFirstRow);
+            strip.mmError = null;
+            if (i < strips - 1) {
+                mExecutor.execute(strip);
+            }
+        }
+        
+        mStrips[strips - 1].encode();
+        awaitStrips();
+        
+        out.reset();
+        mHeaderEncoder.writeHeaders(out, width, height, quality,
+                strips > 1 ? rowsPerStrip * JpegEncoder.getMcuColumns(width) : 0);
+        for (int i = 0; i < strips; i++) {
+            Strip strip = mStrips[i];
+            strip.mmData = null;
+            if (strip.mmError != null) {
+                throw strip.mmError;
+            }
+            
+            out.write(strip.mmBuffer.getData(), 0, strip.mmBuffer.getLength());
+            if (i < strips - 1) {
+                JpegEncoder.writeRestartMarker(out, i);
+            }
+        }
+        JpegEncoder.writeTrailer(out);
+        
+        return out.getLength();
+    }
+    
+    private void awaitStrips() {
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mRemaining > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // the strips use shared buffers, so they have to finish anyway
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+    
+    private final class Strip implements Runnable {
+        private final JpegEncoder mmEncoder = new JpegEncoder();
+        private final JpegBuffer mmBuffer = new JpegBuffer(0);
+        private byte[] mmData;
+        private int mmWidth;
+        private int mmHeight;
+        private int mmQuality;
+        private int mmFirstRow;
+        private int mmRowCount;
+        private RuntimeException mmError;
+        
+        @Override
+        public void run() {
+            try {
+                encode();
+            } finally {
+                synchronized (mLock) {
+                    mRemaining--;
+                    mLock.notifyAll();
+                }
+            }
+        }
+        
+        private void encode() {
+            mmBuffer.reset();
+            try {
+                mmEncoder.encodeStrip(mmData, mmWidth, mmHeight, mmQuality, mmFirstRow, mmRowCount,
+                        mmBuffer);
+            } catch (RuntimeException e) {
+                mmError = e;
+            }
+        }
+    }
+}
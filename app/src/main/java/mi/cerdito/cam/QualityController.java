@@ -0,0 +1,116 @@
+package mi.cerdito.cam;
+
+/**
+ * Closed-loop control of the JPEG operating point. Quality goes down in steps while
+ * encoding takes longer than the frame budget or consumers report a send backlog, and
+ * goes up again once there is headroom. When quality is at its minimum, the resolution
+ * can optionally be halved as well.
+ */
+public class QualityController {
+    private final static int QUALITY_STEP = 5;
+    private final static int MAX_SCALE = 4;
+    private final static int WINDOW_FRAMES = 15;
+    private final static int RECOVERY_WINDOWS = 3;
+    private final static float HEADROOM = 0.6f;
+    
+    private final int mMinQuality;
+    private final int mMaxQuality;
+    private final long mFrameBudget;
+    private final boolean mScaleEnabled;
+    
+    private volatile int mQuality;
+    private volatile int mScale = 1;
+    
+    private float mAverageEncodeTime = 0;
+    private int mWindowFrames = 0;
+    private int mWindowBacklog = 0;
+    private int mCalmWindows = 0;
+    
+    /**
+     * @param quality initial quality
+     * @param minQuality lowest quality the controller may choose
+     * @param maxQuality highest quality the controller may choose
+     * @param frameBudget time available to encode one frame in milliseconds
+     * @param scaleEnabled whether the resolution may be lowered below minQuality
+     */
+    public QualityController(int quality, int minQuality, int maxQuality, long frameBudget,
+                             boolean scaleEnabled) {
+        mMinQuality = Math.max(1, Math.min(minQuality, maxQuality));
+        mMaxQuality = Math.min(100, Math.max(minQuality, maxQuality));
+        mQuality = Math.max(mMinQuality, Math.min(quality, mMaxQuality));
+        mFrameBudget = frameBudget;
+        mScaleEnabled = scaleEnabled;
+    }
+    
+    /**
+     * @return current JPEG quality
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+    
+    /**
+     * @return current resolution divisor, 1 for full size
+     */
+    public int getScale() {
+        return mScale;
+    }
+    
+    /**
+     * Report the time spent encoding one frame. Called by the encoder thread.
+     * @param encodeTime encode time in milliseconds
+     */
+    public synchronized void onEncode(float encodeTime) {
+        mAverageEncodeTime = mAverageEncodeTime == 0 ? encodeTime
+                : mAverageEncodeTime * 0.8f + encodeTime * 0.2f;
+        
+        mWindowFrames++;
+        if (mWindowFrames >= WINDOW_FRAMES) {
+            adjust();
+        }
+    }
+    
+    /**
+     * Report that a consumer could not send a frame before the next one was ready.
+     */
+    public synchronized void onBacklog() {
+        mWindowBacklog++;
+    }
+    
+    private void adjust() {
+        boolean overloaded = mAverageEncodeTime > mFrameBudget || mWindowBacklog > 0;
+        boolean idle = mAverageEncodeTime < mFrameBudget * HEADROOM && mWindowBacklog == 0;
+        mWindowFrames = 0;
+        mWindowBacklog = 0;
+        
+        if (overloaded) {
+            mCalmWindows = 0;
+            if (mQuality > mMinQuality) {
+                mQuality = Math.max(mMinQuality, mQuality - QUALITY_STEP);
+            } else if (mScaleEnabled && mScale < MAX_SCALE) {
+                mScale *= 2;
+            }
+        } else if (idle) {
+            // only step up after a few calm windows, so the loop does not oscillate
+            mCalmWindows++;
+            if (mCalmWindows < RECOVERY_WINDOWS) {
+                return;
+            }
+            mCalmWindows = 0;
+            
+            if (mScale > 1) {
+                mScale /= 2;
+            } else if (mQuality < mMaxQuality) {
+                mQuality = Math.min(mMaxQuality, mQuality + QUALITY_STEP);
+            }
+        } else {
+            mCalmWindows = 0;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "quality " + mQuality + (mScale > 1 ? ", 1/" + mScale + " size" : "")
+                + ", encode " + Math.round(mAverageEncodeTime) + "/" + mFrameBudget + " ms";
+    }
+}
@@ -0,0 +1,134 @@
+package mi.cerdito.cam;
+
+/**
+ * The frames of a JpegFactory at another size and quality. A rendition is shared by every
+ * consumer asking for the same size and quality, and encoded only while it has consumers.
+ */
+public class Rendition implements JpegProvider {
+    private final JpegFactory mFactory;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+    private final FrameSlot mSlot = new FrameSlot();
+    private int mConsumers = 0;
+    
+    Rendition(JpegFactory factory, int width, int height, int quality) {
+        mFactory = factory;
+        mWidth = width;
+        mHeight = height;
+        mQuality = quality;
+    }
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    public int getQuality() {
+        return mQuality;
+    }
+    
+    boolean matches(int width, int height, int quality) {
+        return mWidth == width && mHeight == height && mQuality == quality;
+    }
+    
+    FrameSlot getSlot() {
+        return mSlot;
+    }
+    
+    /**
+     * Change the consumer count. Only called by JpegFactory with its lock held.
+     * @return the new count
+     */
+    int updateConsumers(int delta) {
+        mConsumers += delta;
+        
+        return mConsumers;
+    }
+    
+    int getConsumers() {
+        return mConsumers;
+    }
+    
+    public byte[] getJpeg() {
+        return JpegFactory.toByteArray(getSnapshotFrame());
+    }
+    
+    public JpegFrame getSnapshotFrame() {
+        return mFactory.getSnapshot(mSlot, this);
+    }
+    
+    public byte[] getNewJpeg() throws InterruptedException {
+        return mSlot.getNewJpeg();
+    }
+    
+    public JpegFrame getFrame() {
+        return mSlot.getLatestFrame();
+    }
+    
+    public long getCaptureSequence() {
+        return mFactory.getCaptureSequence();
+    }
+    
+    public JpegFrame getFrameAfter(long sequence, long timeout) throws InterruptedException {
+        return mSlot.getFrameAfter(sequence, timeout);
+    }
+    
+    public void addConsumer() {
+        mFactory.addConsumer(this);
+    }
+    
+    public void removeConsumer() {
+        mFactory.removeConsumer(this);
+    }
+    
+    public void addSnapshotConsumer() {
+        mFactory.addSnapshotWaiter();
+        addConsumer();
+    }
+    
+    public void removeSnapshotConsumer() {
+        removeConsumer();
+        mFactory.removeSnapshotWaiter();
+    }
+    
+    public JpegProvider getRendition(int width, int quality) {
+        return mFactory.getRendition(width, quality);
+    }
+    
+    public ReplayBuffer getReplayBuffer() {
+        return mFactory.getReplayBuffer();
+    }
+    
+    public TileStream getTiles() {
+        return mFactory.getTiles();
+    }
+    
+    public void reportBacklog() {
+        mFactory.reportBacklog();
+    }
+    
+    public void reportDelivery(JpegFrame frame) {
+        mFactory.reportDelivery(frame);
+    }
+    
+    public String getStats() {
+        return mFactory.getStats();
+    }
+    
+    public void addFrameListener(FrameListener listener) {
+        mSlot.addFrameListener(listener);
+    }
+    
+    public void removeFrameListener(FrameListener listener) {
+        mSlot.removeFrameListener(listener);
+    }
+    
+    @Override
+    public String toString() {
+        return mWidth + "x" + mHeight + "@" + mQuality;
+    }
+}
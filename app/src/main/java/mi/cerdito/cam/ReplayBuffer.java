@@ -0,0 +1,134 @@
+package mi.cerdito.cam;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of the most recent encoded frames, limited by bytes and by age. The images are
+ * stored back to back in one direct buffer, so keeping thousands of frames does not
+ * give the garbage collector thousands of arrays to trace.
+ */
+public class ReplayBuffer {
+    private final static int MAX_FRAME_RATE = 60;
+    private final static int POOL_SIZE = 2;
+    
+    private final ByteBuffer mArena;
+    private final long mMaxAge;
+    private final JpegFramePool mPool = new JpegFramePool(POOL_SIZE);
+    
+    private final long[] mSequences;
+    private final long[] mCaptureTimes;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private int mFirst = 0;
+    private int mCount = 0;
+    private int mWritePosition = 0;
+    
+    /**
+     * @param capacity size of the arena in bytes
+     * @param maxAge age in milliseconds after which frames are dropped
+     */
+    public ReplayBuffer(int capacity, long maxAge) {
+        mArena = ByteBuffer.allocateDirect(capacity);
+        mMaxAge = maxAge;
+        
+        int maxFrames = (int) (maxAge * MAX_FRAME_RATE / 1000) + 1;
+        mSequences = new long[maxFrames];
+        mCaptureTimes = new long[maxFrames];
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+        mWidths = new int[maxFrames];
+        mHeights = new int[maxFrames];
+    }
+    
+    /**
+     * Copy a frame into the ring, dropping the oldest frames to make room.
+     */
+    public synchronized void append(JpegFrame frame) {
+        int length = frame.getLength();
+        if (length > mArena.capacity()) {
+            return;
+        }
+        
+        long oldest = frame.getCaptureTime() - mMaxAge;
+        while (mCount > 0 && mCaptureTimes[mFirst] < oldest) {
+            dropOldest();
+        }
+        if (mCount == mSequences.length) {
+            dropOldest();
+        }
+        
+        int position = mWritePosition;
+        if (position + length > mArena.capacity()) {
+            // frames past the write position are left from the previous lap, and older
+            // than anything at the start of the arena
+            while (mCount > 0 && mOffsets[mFirst] >= position) {
+                dropOldest();
+            }
+            position = 0;
+        }
+        while (mCount > 0 && mOffsets[mFirst] < position + length
+                && position < mOffsets[mFirst] + mLengths[mFirst]) {
+            dropOldest();
+        }
+        
+        mArena.clear();
+        mArena.position(position);
+        mArena.put(frame.getData(), 0, length);
+        
+        int index = (mFirst + mCount) % mSequences.length;
+        mSequences[index] = frame.getSequence();
+        mCaptureTimes[index] = frame.getCaptureTime();
+        mOffsets[index] = position;
+        mLengths[index] = length;
+        mWidths[index] = frame.getWidth();
+        mHeights[index] = frame.getHeight();
+        mCount++;
+        mWritePosition = position + length;
+    }
+    
+    private void dropOldest() {
+        mFirst = (mFirst + 1) % mSequences.length;
+        mCount--;
+    }
+    
+    /**
+     * @return sequence number of the newest frame, -1 if the ring is empty
+     */
+    public synchronized long getLastSequence() {
+        return mCount > 0 ? mSequences[(mFirst + mCount - 1) % mSequences.length] : -1;
+    }
+    
+    /**
+     * @return capture time of the newest frame, 0 if the ring is empty
+     */
+    public synchronized long getLastCaptureTime() {
+        return mCount > 0 ? mCaptureTimes[(mFirst + mCount - 1) % mSequences.length] : 0;
+    }
+    
+    /**
+     * Copy out the oldest frame that comes after a sequence number and was captured at
+     * or after a given time.
+     * @return the frame, to be released by the caller, or null if there is none
+     */
+    public synchronized JpegFrame read(long sequence, long captureTime) {
+        for (int i = 0; i < mCount; i++) {
+            int index = (mFirst + i) % mSequences.length;
+            if (mSequences[index] <= sequence || mCaptureTimes[index] < captureTime) {
+                continue;
+            }
+            
+            JpegFrame frame = mPool.obtain(mSequences[index], mCaptureTimes[index]);
+            mArena.clear();
+            mArena.position(mOffsets[index]);
+            mArena.limit(mOffsets[index] + mLengths[index]);
+            frame.getBuffer().write(mArena);
+            frame.setSize(mWidths[index], mHeights[index]);
+            
+            return frame;
+        }
+        
+        return null;
+    }
+}
@@ -0,0 +1,47 @@
+package mi.cerdito.cam;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Histogram of the recent past: values go to the current window, which replaces the
+ * previous one once it is older than the window length. A snapshot covers between one
+ * and two windows, so old values age out without a reset ever losing the latest ones.
+ */
+public class RollingHistogram {
+    public final static long DEFAULT_WINDOW = 60000;
+    
+    private final long mWindow;
+    private final AtomicLong mWindowStart = new AtomicLong(System.currentTimeMillis());
+    private volatile Histogram mCurrent = new Histogram();
+    private volatile Histogram mPrevious = new Histogram();
+    
+    /**
+     * @param window window length in milliseconds
+     */
+    public RollingHistogram(long window) {
+        mWindow = window;
+    }
+    
+    public void record(long value) {
+        long now = System.currentTimeMillis();
+        long windowStart = mWindowStart.get();
+        if (now - windowStart >= mWindow && mWindowStart.compareAndSet(windowStart, now)) {
+            // one histogram per window, records racing with the switch land in either one
+            mPrevious = mCurrent;
+            mCurrent = new Histogram();
+        }
+        
+        mCurrent.record(value);
+    }
+    
+    /**
+     * @return the values of the current and the previous window
+     */
+    public Histogram getSnapshot() {
+        Histogram snapshot = new Histogram();
+        snapshot.add(mPrevious);
+        snapshot.add(mCurrent);
+        
+        return snapshot;
+    }
+}
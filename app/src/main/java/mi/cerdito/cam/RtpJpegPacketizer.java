@@ -0,0 +1,254 @@
+package mi.cerdito.cam;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Splits baseline JPEG images into RTP/JPEG packets as described in RFC 2435. The
+ * quantization tables are sent in-band with every frame (Q = 255) and the receiver
+ * rebuilds the headers with the standard Huffman tables, which both the platform and
+ * the Java encoder use.
+ *
+ * A packetizer keeps the sequence numbers of one RTP stream and reuses a single packet
+ * buffer, so it must only be used by one thread.
+ */
+public class RtpJpegPacketizer {
+    public final static int PAYLOAD_TYPE = 26;
+    public final static int CLOCK_RATE = 90000;
+    public final static int DEFAULT_PACKET_SIZE = 1400;
+    
+    private final static int RTP_HEADER_SIZE = 12;
+    private final static int JPEG_HEADER_SIZE = 8;
+    private final static int RESTART_HEADER_SIZE = 4;
+    private final static int QUANTIZATION_HEADER_SIZE = 4;
+    private final static int TABLE_SIZE = 64;
+    private final static int MAX_DIMENSION = 2040;
+    private final static int TYPE_422 = 0;
+    private final static int TYPE_420 = 1;
+    private final static int TYPE_RESTART = 64;
+    
+    private final int mSsrc;
+    private final byte[] mPacket;
+    private final DatagramPacket mDatagram;
+    private int mSequenceNumber;
+    
+    // fields of the last parsed image
+    private final byte[] mTables = new byte[2 * TABLE_SIZE];
+    private int mTableCount;
+    private int mType;
+    private int mWidth;
+    private int mHeight;
+    private int mRestartInterval;
+    private int mScanStart;
+    private int mScanEnd;
+    
+    /**
+     * @param ssrc synchronization source of the stream
+     * @param packetSize maximum size of a packet, RTP header included
+     */
+    public RtpJpegPacketizer(int ssrc, int packetSize) {
+        mSsrc = ssrc;
+        mPacket = new byte[packetSize];
+        mDatagram = new DatagramPacket(mPacket, packetSize);
+        mSequenceNumber = (int) (Math.random() * 0x10000);
+    }
+    
+    public int getSsrc() {
+        return mSsrc;
+    }
+    
+    /**
+     * Send a frame as RTP packets. The RTP timestamp is the capture time on the 90 kHz
+     * clock.
+     * @return number of bytes sent, or -1 if the image can not be carried by RTP/JPEG
+     */
+    public long send(JpegFrame frame, DatagramSocket socket, InetAddress address, int port)
+            throws IOException {
+        byte[] data = frame.getData();
+        if (!parse(data, frame.getLength())) {
+            return -1;
+        }
+        
+        mDatagram.setAddress(address);
+        mDatagram.setPort(port);
+        
+        long timestamp = frame.getCaptureTime() * (CLOCK_RATE / 1000);
+        int scanLength = mScanEnd - mScanStart;
+        int offset = 0;
+        long bytes = 0;
+        while (offset < scanLength) {
+            int position = writeRtpHeader(timestamp);
+            position = writeJpegHeader(position, offset);
+            if (offset == 0) {
+                position = writeQuantizationTables(position);
+            }
+            
+            int length = Math.min(scanLength - offset, mPacket.length - position);
+            System.arraycopy(data, mScanStart + offset, mPacket, position, length);
+            offset += length;
+            if (offset == scanLength) {
+                // marker bit on the last packet of the frame
+                mPacket[1] |= 0x80;
+            }
+            
+            mDatagram.setData(mPacket, 0, position + length);
+            socket.send(mDatagram);
+            bytes += position + length;
+        }
+        
+        return bytes;
+    }
+    
+    private int writeRtpHeader(long timestamp) {
+        mPacket[0] = (byte) 0x80;
+        mPacket[1] = (byte) PAYLOAD_TYPE;
+        mPacket[2] = (byte) (mSequenceNumber >> 8);
+        mPacket[3] = (byte) mSequenceNumber;
+        mPacket[4] = (byte) (timestamp >> 24);
+        mPacket[5] = (byte) (timestamp >> 16);
+        mPacket[6] = (byte) (timestamp >> 8);
+        mPacket[7] = (byte) timestamp;
+        mPacket[8] = (byte) (mSsrc >> 24);
+        mPacket[9] = (byte) (mSsrc >> 16);
+        mPacket[10] = (byte) (mSsrc >> 8);
+        mPacket[11] = (byte) mSsrc;
+        mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+        
+        return RTP_HEADER_SIZE;
+    }
+    
+    private int writeJpegHeader(int position, int fragmentOffset) {
+        mPacket[position] = 0;
+        mPacket[position + 1] = (byte) (fragmentOffset >> 16);
+        mPacket[position + 2] = (byte) (fragmentOffset >> 8);
+        mPacket[position + 3] = (byte) fragmentOffset;
+        mPacket[position + 4] = (byte) (mRestartInterval > 0 ? mType + TYPE_RESTART : mType);
+        mPacket[position + 5] = (byte) 255;
+        // sizes in blocks, a partial block is shown padded
+        mPacket[position + 6] = (byte) ((mWidth + 7) / 8);
+        mPacket[position + 7] = (byte) ((mHeight + 7) / 8);
+        position += JPEG_HEADER_SIZE;
+        
+        if (mRestartInterval > 0) {
+            // packets are not aligned to restart intervals: F = L = 1, count 0x3fff
+            mPacket[position] = (byte) (mRestartInterval >> 8);
+            mPacket[position + 1] = (byte) mRestartInterval;
+            mPacket[position + 2] = (byte) 0xff;
+            mPacket[position + 3] = (byte) 0xff;
+            position += RESTART_HEADER_SIZE;
+        }
+        
+        return position;
+    }
+    
+    private int writeQuantizationTables(int position) {
+        int length = mTableCount * TABLE_SIZE;
+        mPacket[position] = 0;
+        mPacket[position + 1] = 0;
+        mPacket[position + 2] = (byte) (length >> 8);
+        mPacket[position + 3] = (byte) length;
+        position += QUANTIZATION_HEADER_SIZE;
+        System.arraycopy(mTables, 0, mPacket, position, length);
+        
+        return position + length;
+    }
+    
+    /**
+     * Read the markers of a JPEG image up to its scan data.
+     * @return false if the image is not a baseline YCbCr 4:2:0 or 4:2:2 image with 8-bit
+     * tables that RTP/JPEG can describe
+     */
+    private boolean parse(byte[] data, int length) {
+        mTableCount = 0;
+        mType = -1;
+        mRestartInterval = 0;
+        
+        if (length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            return false;
+        }
+        
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((data[position] & 0xff) != 0xff) {
+                return false;
+            }
+            int marker = data[position + 1] & 0xff;
+            int segmentLength = ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+            int segment = position + 4;
+            int next = position + 2 + segmentLength;
+            if (next > length) {
+                return false;
+            }
+            
+            switch (marker) {
+                case 0xdb:
+                    // DQT, one or more tables
+                    while (segment < next) {
+                        int table = data[segment] & 0xff;
+                        if ((table >> 4) != 0 || (table & 0x0f) > 1) {
+                            return false;
+                        }
+                        System.arraycopy(data, segment + 1, mTables, (table & 0x0f) * TABLE_SIZE,
+                                TABLE_SIZE);
+                        mTableCount = Math.max(mTableCount, (table & 0x0f) + 1);
+                        segment += 1 + TABLE_SIZE;
+                    }
+                    break;
+                case 0xc0:
+                    if (!parseFrameHeader(data, segment)) {
+                        return false;
+                    }
+                    break;
+                case 0xdd:
+                    mRestartInterval = ((data[segment] & 0xff) << 8) | (data[segment + 1] & 0xff);
+                    break;
+                case 0xda:
+                    mScanStart = next;
+                    mScanEnd = length;
+                    if ((data[length - 2] & 0xff) == 0xff && (data[length - 1] & 0xff) == 0xd9) {
+                        mScanEnd -= 2;
+                    }
+                    return mType >= 0 && mTableCount == 2;
+                default:
+                    if (marker >= 0xc1 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8
+                            && marker != 0xcc) {
+                        // progressive, lossless or arithmetic coded
+                        return false;
+                    }
+                    break;
+            }
+            
+            position = next;
+        }
+        
+        return false;
+    }
+    
+    private boolean parseFrameHeader(byte[] data, int segment) {
+        mHeight = ((data[segment + 1] & 0xff) << 8) | (data[segment + 2] & 0xff);
+        mWidth = ((data[segment + 3] & 0xff) << 8) | (data[segment + 4] & 0xff);
+        if (data[segment] != 8 || data[segment + 5] != 3
+                || mWidth > MAX_DIMENSION || mHeight > MAX_DIMENSION) {
+            return false;
+        }
+        
+        // component id, sampling factors and table of Y, Cb and Cr
+        int luma = data[segment + 7] & 0xff;
+        if ((data[segment + 8] & 0xff) != 0 || (data[segment + 10] & 0xff) != 0x11
+                || (data[segment + 11] & 0xff) != 1 || (data[segment + 13] & 0xff) != 0x11
+                || (data[segment + 14] & 0xff) != 1) {
+            return false;
+        }
+        if (luma == 0x22) {
+            mType = TYPE_420;
+        } else if (luma == 0x21) {
+            mType = TYPE_422;
+        } else {
+            return false;
+        }
+        
+        return true;
+    }
+}
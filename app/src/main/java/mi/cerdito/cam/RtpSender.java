@@ -0,0 +1,158 @@
+package mi.cerdito.cam;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+
+/**
+ * Sends the frames of a provider as an RTP/JPEG stream to one destination, which is
+ * either a unicast client or a multicast group shared by any number of clients.
+ */
+public class RtpSender implements Runnable {
+    public final String TAG = "Webcam";
+    
+    private final static int MAX_PORT_ATTEMPTS = 16;
+    
+    private final JpegProvider mJpegProvider;
+    private final DatagramSocket mSocket;
+    private final DatagramSocket mRtcpSocket;
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final RtpJpegPacketizer mPacketizer;
+    private final StreamClient mClient;
+    private Thread mThread = null;
+    private boolean mSkipLogged = false;
+    
+    private RtpSender(JpegProvider jpegProvider, DatagramSocket socket,
+                      DatagramSocket rtcpSocket, InetAddress address, int port) {
+        mJpegProvider = jpegProvider;
+        mSocket = socket;
+        mRtcpSocket = rtcpSocket;
+        mAddress = address;
+        mPort = port;
+        mPacketizer = new RtpJpegPacketizer((int) (Math.random() * Integer.MAX_VALUE),
+                RtpJpegPacketizer.DEFAULT_PACKET_SIZE);
+        mClient = new StreamClient(address.getHostAddress() + ":" + port, socket);
+    }
+    
+    /**
+     * Create a sender to one client. RTP is sent from an even ephemeral port and the port
+     * after it is bound for RTCP, as RFC 3550 asks; the receiver reports arriving there
+     * are ignored.
+     */
+    public static RtpSender createUnicast(JpegProvider jpegProvider, InetAddress address,
+                                          int port) throws IOException {
+        for (int i = 0; i < MAX_PORT_ATTEMPTS; i++) {
+            DatagramSocket socket = new DatagramSocket();
+            int localPort = socket.getLocalPort();
+            if (localPort % 2 == 0 && localPort < 0xffff) {
+                try {
+                    DatagramSocket rtcpSocket = new DatagramSocket(localPort + 1);
+                    return new RtpSender(jpegProvider, socket, rtcpSocket, address, port);
+                } catch (SocketException e) {
+                    // the RTCP port is taken, try another pair
+                }
+            }
+            socket.close();
+        }
+        
+        throw new IOException("No free RTP/RTCP port pair");
+    }
+    
+    /**
+     * Create a sender to a multicast group.
+     * @param ttl time to live of the packets
+     */
+    public static RtpSender createMulticast(JpegProvider jpegProvider, InetAddress group,
+                                            int port, int ttl) throws IOException {
+        MulticastSocket socket = new MulticastSocket();
+        socket.setTimeToLive(ttl);
+        
+        return new RtpSender(jpegProvider, socket, null, group, port);
+    }
+    
+    public int getLocalPort() {
+        return mSocket.getLocalPort();
+    }
+    
+    public int getSsrc() {
+        return mPacketizer.getSsrc();
+    }
+    
+    public StreamClient getClient() {
+        return mClient;
+    }
+    
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, "RtpSender " + mClient.getAddress());
+            mThread.start();
+        }
+    }
+    
+    /**
+     * Stop sending. The sender can be started again with the same socket.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    public void close() {
+        stop();
+        mSocket.close();
+        if (mRtcpSocket != null) {
+            mRtcpSocket.close();
+        }
+    }
+    
+    @Override
+    public void run() {
+        Log.v(TAG, "RTP sender started: " + mClient.getAddress());
+        
+        mJpegProvider.addConsumer();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                JpegFrame frame = mJpegProvider.getFrameAfter(mClient.getSequence(), 0);
+                try {
+                    mClient.beginWrite(frame);
+                    long bytes = mPacketizer.send(frame, mSocket, mAddress, mPort);
+                    if (bytes < 0) {
+                        if (!mSkipLogged) {
+                            Log.e(TAG, "Frame can not be sent as RTP/JPEG, skipped");
+                            mSkipLogged = true;
+                        }
+                        bytes = 0;
+                    }
+                    mClient.endWrite(bytes);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            Log.e(TAG, "RTP send failed: " + e.getMessage());
+        } finally {
+            mJpegProvider.removeConsumer();
+        }
+        
+        Log.v(TAG, "RTP sender stopped: " + mClient);
+    }
+}
@@ -0,0 +1,400 @@
+package mi.cerdito.cam;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * RTSP server delivering the frames as RTP/JPEG over UDP. Every unicast session has its
+ * own sender, so only the encoded frames are shared and each packet is sent once per
+ * viewer. When a multicast group is set, sessions asking for multicast transport share
+ * one sender to the group, and the bandwidth stays the same whatever the number of
+ * viewers.
+ *
+ * The query parameters of the URL select a rendition as for MjpegServer, e.g.
+ * rtsp://host:8554/?width=640. "?multicast" asks for the multicast stream, which always
+ * carries the full-size frames.
+ *
+ * Sessions belong to the control connection that set them up and end with it. The
+ * connection is closed when no request arrives for SESSION_TIMEOUT seconds, so clients
+ * keep their sessions alive with e.g. GET_PARAMETER. RTCP is not sent, the stream has no
+ * other media to be synchronized with.
+ */
+public class RtspServer extends SimpleServer {
+    public final String TAG = "Webcam";
+    
+    public final static int DEFAULT_PORT = 8554;
+    public final static int DEFAULT_MULTICAST_PORT = 5004;
+    public final static int DEFAULT_MULTICAST_TTL = 1;
+    final static int SESSION_TIMEOUT = 60;
+    private final static String PUBLIC_METHODS =
+            "OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER";
+    
+    private final JpegProvider mJpegProvider;
+    private final ArrayList<Session> mSessions = new ArrayList<Session>();
+    private InetAddress mMulticastGroup = null;
+    private int mMulticastPort = DEFAULT_MULTICAST_PORT;
+    private int mMulticastTtl = DEFAULT_MULTICAST_TTL;
+    private RtpSender mMulticastSender = null;
+    private int mMulticastViewers = 0;
+    private final ConcurrencyLimit mSessionLimit = new ConcurrencyLimit(
+            MjpegServer.DEFAULT_MAX_STREAMS, MjpegServer.STREAM_RETRY_AFTER);
+    
+    public RtspServer(JpegProvider jpegProvider) {
+        mJpegProvider = jpegProvider;
+        setConcurrencyLimits(MjpegServer.DEFAULT_MAX_STREAMS, 0);
+    }
+    
+    /**
+     * Offer a multicast stream. Must be called before start().
+     * @param group multicast group address, null for unicast only
+     * @param port RTP port of the group
+     * @param ttl time to live of the packets
+     * @throws IllegalArgumentException if group is not a multicast address
+     */
+    public void setMulticast(InetAddress group, int port, int ttl) {
+        if (group != null && !group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group.getHostAddress() + " is not multicast");
+        }
+        mMulticastGroup = group;
+        mMulticastPort = port;
+        mMulticastTtl = ttl;
+    }
+    
+    @Override
+    public void close() {
+        super.close();
+        
+        synchronized (this) {
+            if (mMulticastSender != null) {
+                mMulticastSender.close();
+                mMulticastSender = null;
+            }
+            mMulticastViewers = 0;
+        }
+    }
+    
+    /**
+     * RTP is not written through the connection, there is no write deadline.
+     */
+    public void setWriteTimeout(long timeout) {
+    }
+    
+    /**
+     * Playback is only served by MjpegServer, the recorder is ignored.
+     */
+    public void setRecorder(SegmentRecorder recorder) {
+    }
+    
+    /**
+     * Every session counts as a stream, there are no snapshots. A control connection
+     * keeps its worker while its sessions play.
+     */
+    public void setConcurrencyLimits(int maxStreams, int maxSnapshots) {
+        mSessionLimit.setMax(maxStreams);
+        setMaxWorkers(mSessionLimit.getMax() + MjpegServer.SPARE_WORKERS);
+    }
+    
+    /**
+     * @return one client per unicast session and one for the multicast group
+     */
+    public List<StreamClient> getStreamClients() {
+        ArrayList<StreamClient> clients = new ArrayList<StreamClient>();
+        synchronized (this) {
+            for (Session session : mSessions) {
+                if (session.mmSender != null) {
+                    clients.add(session.mmSender.getClient());
+                }
+            }
+            if (mMulticastSender != null && mMulticastViewers > 0) {
+                clients.add(mMulticastSender.getClient());
+            }
+        }
+        
+        return clients;
+    }
+    
+    @Override
+    protected void handleConnection(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                "ASCII"));
+        OutputStream out = socket.getOutputStream();
+        HashMap<String, Session> sessions = new HashMap<String, Session>();
+        socket.setSoTimeout(SESSION_TIMEOUT * 1000);
+        
+        try {
+            while (true) {
+                String requestLine = in.readLine();
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                
+                Log.v(TAG, "RTSP " + requestLine);
+                
+                HttpRequest request = HttpRequest.parse(requestLine);
+                if (request == null) {
+                    sendResponse(out, "400 Bad Request", null, null, null);
+                    break;
+                }
+                request.readHeaders(in);
+                String cseq = request.getHeader("cseq");
+                if (cseq == null) {
+                    sendResponse(out, "400 Bad Request", null, null, null);
+                    continue;
+                }
+                
+                String method = request.getMethod();
+                if ("OPTIONS".equals(method)) {
+                    sendResponse(out, "200 OK", cseq, "Public: " + PUBLIC_METHODS + "\r\n", null);
+                } else if ("DESCRIBE".equals(method)) {
+                    sendDescription(socket, out, cseq, request);
+                } else if ("SETUP".equals(method)) {
+                    setup(socket, out, cseq, request, request.getHeader("transport"), sessions);
+                } else if ("PLAY".equals(method) || "PAUSE".equals(method)
+                        || "TEARDOWN".equals(method) || "GET_PARAMETER".equals(method)) {
+                    Session session = sessions.get(getSessionId(request.getHeader("session")));
+                    if (session == null) {
+                        sendResponse(out, "454 Session Not Found", cseq, null, null);
+                        continue;
+                    }
+                    
+                    if ("PLAY".equals(method)) {
+                        play(session);
+                    } else if ("PAUSE".equals(method)) {
+                        pause(session);
+                    } else if ("TEARDOWN".equals(method)) {
+                        sessions.remove(session.mmId);
+                        closeSession(session);
+                    }
+                    sendResponse(out, "200 OK", cseq, getSessionHeader(session), null);
+                } else {
+                    sendResponse(out, "501 Not Implemented", cseq, null, null);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Log.v(TAG, "RTSP session timed out: " + socket.getInetAddress().getHostAddress());
+        } finally {
+            for (Session session : sessions.values()) {
+                closeSession(session);
+            }
+        }
+    }
+    
+    private void sendDescription(Socket socket, OutputStream out, String cseq,
+                                 HttpRequest request) throws IOException {
+        String localAddress = socket.getLocalAddress().getHostAddress();
+        boolean multicast = request.getParameter("multicast") != null;
+        if (multicast && mMulticastGroup == null) {
+            sendResponse(out, "404 Not Found", cseq, null, null);
+            return;
+        }
+        
+        String connection;
+        int port;
+        if (multicast) {
+            connection = mMulticastGroup.getHostAddress() + "/" + mMulticastTtl;
+            port = mMulticastPort;
+        } else {
+            connection = "0.0.0.0";
+            port = 0;
+        }
+        
+        String description = "v=0\r\n" +
+                "o=- " + System.currentTimeMillis() + " 1 IN IP4 " + localAddress + "\r\n" +
+                "s=Webcam\r\n" +
+                "c=IN IP4 " + connection + "\r\n" +
+                "t=0 0\r\n" +
+                "m=video " + port + " RTP/AVP " + RtpJpegPacketizer.PAYLOAD_TYPE + "\r\n" +
+                "a=rtpmap:" + RtpJpegPacketizer.PAYLOAD_TYPE + " JPEG/" +
+                RtpJpegPacketizer.CLOCK_RATE + "\r\n" +
+                "a=control:*\r\n";
+        
+        sendResponse(out, "200 OK", cseq, "Content-Type: application/sdp\r\n", description);
+    }
+    
+    private void setup(Socket socket, OutputStream out, String cseq, HttpRequest request,
+                       String transport, HashMap<String, Session> sessions) throws IOException {
+        if (transport == null) {
+            sendResponse(out, "461 Unsupported Transport", cseq, null, null);
+            return;
+        }
+        
+        boolean multicast = transport.contains("multicast")
+                || request.getParameter("multicast") != null;
+        int clientPort = getClientPort(transport);
+        if (multicast ? mMulticastGroup == null : transport.contains("/TCP") || clientPort <= 0) {
+            sendResponse(out, "461 Unsupported Transport", cseq, null, null);
+            return;
+        }
+        if (!mSessionLimit.tryAcquire()) {
+            sendResponse(out, "503 Service Unavailable", cseq,
+                    "Retry-After: " + mSessionLimit.getRetryAfter() + "\r\n", null);
+            return;
+        }
+        
+        Session session;
+        String transportHeader;
+        if (multicast) {
+            session = new Session(null);
+            transportHeader = "Transport: RTP/AVP;multicast;destination=" +
+                    mMulticastGroup.getHostAddress() + ";port=" + mMulticastPort + "-" +
+                    (mMulticastPort + 1) + ";ttl=" + mMulticastTtl + "\r\n";
+        } else {
+            JpegProvider provider = MjpegServer.getProvider(mJpegProvider, request);
+            RtpSender sender;
+            try {
+                sender = RtpSender.createUnicast(provider, socket.getInetAddress(), clientPort);
+            } catch (IOException e) {
+                mSessionLimit.release();
+                throw e;
+            }
+            session = new Session(sender);
+            transportHeader = "Transport: RTP/AVP;unicast;client_port=" + clientPort + "-" +
+                    (clientPort + 1) + ";server_port=" + sender.getLocalPort() + "-" +
+                    (sender.getLocalPort() + 1) + ";ssrc=" +
+                    Integer.toHexString(sender.getSsrc()) + "\r\n";
+        }
+        
+        Session previous = sessions.put(session.mmId, session);
+        if (previous != null) {
+            closeSession(previous);
+        }
+        synchronized (this) {
+            mSessions.add(session);
+        }
+        
+        sendResponse(out, "200 OK", cseq, transportHeader + getSessionHeader(session), null);
+    }
+    
+    private void play(Session session) throws IOException {
+        synchronized (this) {
+            if (session.mmPlaying) {
+                return;
+            }
+            
+            if (session.mmSender != null) {
+                session.mmSender.start();
+            } else {
+                if (mMulticastSender == null) {
+                    mMulticastSender = RtpSender.createMulticast(mJpegProvider, mMulticastGroup,
+                            mMulticastPort, mMulticastTtl);
+                }
+                if (mMulticastViewers++ == 0) {
+                    mMulticastSender.start();
+                }
+            }
+            session.mmPlaying = true;
+        }
+    }
+    
+    private void pause(Session session) {
+        synchronized (this) {
+            if (!session.mmPlaying) {
+                return;
+            }
+            session.mmPlaying = false;
+            
+            if (session.mmSender != null) {
+                session.mmSender.stop();
+            } else if (--mMulticastViewers == 0 && mMulticastSender != null) {
+                // the group is only fed while somebody watches
+                mMulticastSender.stop();
+            }
+        }
+    }
+    
+    private void closeSession(Session session) {
+        pause(session);
+        if (session.mmSender != null) {
+            session.mmSender.close();
+        }
+        synchronized (this) {
+            mSessions.remove(session);
+        }
+        mSessionLimit.release();
+    }
+    
+    private static String getSessionHeader(Session session) {
+        return "Session: " + session.mmId + ";timeout=" + SESSION_TIMEOUT + "\r\n";
+    }
+    
+    private static String getSessionId(String sessionHeader) {
+        if (sessionHeader == null) {
+            return null;
+        }
+        
+        int semicolonIndex = sessionHeader.indexOf(';');
+        return semicolonIndex < 0 ? sessionHeader : sessionHeader.substring(0, semicolonIndex);
+    }
+    
+    /**
+     * @return the first port of the client_port parameter of a Transport header, -1 if
+     * there is none
+     */
+    private static int getClientPort(String transport) {
+        int index = transport.indexOf("client_port=");
+        if (index < 0) {
+            return -1;
+        }
+        
+        int start = index + "client_port=".length();
+        int end = start;
+        while (end < transport.length() && Character.isDigit(transport.charAt(end))) {
+            end++;
+        }
+        
+        try {
+            return Integer.parseInt(transport.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static void sendResponse(OutputStream out, String status, String cseq,
+                                     String headers, String body) throws IOException {
+        StringBuilder response = new StringBuilder();
+        response.append("RTSP/1.0 ").append(status).append("\r\n");
+        if (cseq != null) {
+            response.append("CSeq: ").append(cseq).append("\r\n");
+        }
+        if (headers != null) {
+            response.append(headers);
+        }
+        if (body != null) {
+            response.append("Content-Length: ").append(body.length()).append("\r\n");
+        }
+        response.append("\r\n");
+        if (body != null) {
+            response.append(body);
+        }
+        
+        out.write(response.toString().getBytes());
+        out.flush();
+    }
+    
+    private static final class Session {
+        private final String mmId;
+        private final RtpSender mmSender;
+        private boolean mmPlaying = false;
+        
+        /**
+         * @param sender sender of a unicast session, null for multicast
+         */
+        private Session(RtpSender sender) {
+            mmId = Long.toHexString((long) (Math.random() * Long.MAX_VALUE));
+            mmSender = sender;
+        }
+    }
+}
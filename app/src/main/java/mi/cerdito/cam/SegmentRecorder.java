@@ -0,0 +1,461 @@
+package mi.cerdito.cam;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Records the frames of a provider to segment files. Each segment is a pre-allocated,
+ * memory-mapped data file with the JPEG images back to back, and an index file of
+ * (capture time, offset, length) entries. Segments rotate when full and the oldest ones
+ * are deleted.
+ *
+ * The recorder is an ordinary consumer on its own thread, so a slow disk only makes it
+ * skip frames and never holds up the encoder or the stream clients.
+ */
+public class SegmentRecorder implements Runnable {
+    public final String TAG = "Webcam";
+    
+    private final static String DATA_SUFFIX = ".mjpg";
+    private final static String INDEX_SUFFIX = ".idx";
+    private final static int INDEX_ENTRY_SIZE = 16;
+    private final static int MIN_FRAME_SIZE = 2048;
+    
+    private final File mDirectory;
+    private final JpegProvider mJpegProvider;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private Segment mCurrent = null;
+    private boolean mClosed = false;
+    private Thread mThread = null;
+    
+    /**
+     * @param directory directory of the segment files
+     * @param segmentSize size of a data file in bytes, at most Integer.MAX_VALUE since a
+     * segment is mapped as a whole
+     * @param maxSegments number of segments kept, including the one being written
+     */
+    public SegmentRecorder(File directory, JpegProvider jpegProvider, long segmentSize,
+                           int maxSegments) {
+        mDirectory = directory;
+        mJpegProvider = jpegProvider;
+        mSegmentSize = (int) Math.min(segmentSize, Integer.MAX_VALUE);
+        mMaxSegments = Math.max(1, maxSegments);
+    }
+    
+    /**
+     * Load the segments of earlier recordings and start recording.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        
+        mDirectory.mkdirs();
+        loadSegments();
+        
+        mClosed = false;
+        mThread = new Thread(this, "SegmentRecorder");
+        mThread.start();
+    }
+    
+    /**
+     * Stop recording and flush the segment being written to the files.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mClosed = true;
+            notifyAll();
+        }
+        
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        synchronized (this) {
+            if (mCurrent != null) {
+                mCurrent.finish();
+                mCurrent = null;
+            }
+        }
+    }
+    
+    @Override
+    public void run() {
+        Log.v(TAG, "Recorder started");
+        
+        mJpegProvider.addConsumer();
+        try {
+            long sequence = -1;
+            while (!Thread.currentThread().isInterrupted()) {
+                JpegFrame frame = mJpegProvider.getFrameAfter(sequence, 0);
+                try {
+                    sequence = frame.getSequence();
+                    append(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            Log.e(TAG, "Recording failed: " + e.getMessage());
+        } finally {
+            mJpegProvider.removeConsumer();
+        }
+        
+        Log.v(TAG, "Recorder stopped");
+    }
+    
+    private void append(JpegFrame frame) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            segment = mCurrent;
+        }
+        if (segment == null || !segment.hasRoom(frame.getLength())) {
+            if (frame.getLength() > mSegmentSize) {
+                return;
+            }
+            segment = rotate(frame.getCaptureTime());
+        }
+        
+        // the bytes go in before the entry is counted, readers only see whole frames
+        int index = segment.write(frame);
+        synchronized (this) {
+            segment.mmCount = index + 1;
+            notifyAll();
+        }
+    }
+    
+    private Segment rotate(long startTime) throws IOException {
+        Segment segment = Segment.create(mDirectory, startTime, mSegmentSize,
+                Math.max(1, mSegmentSize / MIN_FRAME_SIZE));
+        
+        ArrayList<Segment> deleted = new ArrayList<Segment>();
+        synchronized (this) {
+            if (mCurrent != null) {
+                mCurrent.finish();
+            }
+            mCurrent = segment;
+            mSegments.add(segment);
+            while (mSegments.size() > mMaxSegments) {
+                deleted.add(mSegments.remove(0));
+            }
+        }
+        for (Segment old : deleted) {
+            Log.v(TAG, "Delete segment " + old.mmStartTime);
+            old.delete();
+        }
+        
+        return segment;
+    }
+    
+    private void loadSegments() {
+        String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(INDEX_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return;
+        }
+        
+        long[] startTimes = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                startTimes[count] = Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // not ours
+            }
+        }
+        Arrays.sort(startTimes, 0, count);
+        
+        synchronized (this) {
+            mSegments.clear();
+            for (int i = 0; i < count; i++) {
+                try {
+                    mSegments.add(Segment.load(mDirectory, startTimes[i]));
+                } catch (IOException e) {
+                    Log.e(TAG, "Fail to load segment " + startTimes[i] + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get a cursor placed before the first recorded frame captured at or after a time.
+     */
+    public Cursor seek(long time) {
+        Cursor cursor = new Cursor();
+        synchronized (this) {
+            for (int i = 0; i < mSegments.size(); i++) {
+                Segment segment = mSegments.get(i);
+                Segment next = i + 1 < mSegments.size() ? mSegments.get(i + 1) : null;
+                if (next != null && next.mmStartTime <= time) {
+                    continue;
+                }
+                
+                cursor.mmSegment = segment;
+                cursor.mmIndex = segment.find(time, segment.mmCount) - 1;
+                break;
+            }
+        }
+        
+        return cursor;
+    }
+    
+    /**
+     * Reads recorded frames in order, following the recording as it grows.
+     */
+    public final class Cursor {
+        private Segment mmSegment = null;
+        private int mmIndex = -1;
+        private FileChannel mmChannel = null;
+        private Segment mmChannelSegment = null;
+        private boolean mmGap = false;
+        
+        /**
+         * Move to the next frame, waiting for it to be recorded if necessary.
+         * @return false if the recorder was closed
+         */
+        public boolean next() throws InterruptedException {
+            synchronized (SegmentRecorder.this) {
+                mmGap = false;
+                while (true) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    
+                    if (mmSegment == null) {
+                        // nothing recorded yet
+                        mmSegment = mSegments.isEmpty() ? null : mSegments.get(0);
+                        mmIndex = -1;
+                    } else if (!mSegments.contains(mmSegment)) {
+                        // the segment was deleted before it was read to the end; segments
+                        // are deleted oldest first, so the oldest one left comes next
+                        mmSegment = mSegments.get(0);
+                        mmIndex = -1;
+                        mmGap = true;
+                    }
+                    if (mmSegment != null) {
+                        if (mmIndex + 1 < mmSegment.mmCount) {
+                            mmIndex++;
+                            return true;
+                        }
+                        
+                        int position = mSegments.indexOf(mmSegment);
+                        if (mmSegment.mmFinished && position + 1 < mSegments.size()) {
+                            mmSegment = mSegments.get(position + 1);
+                            mmIndex = -1;
+                            continue;
+                        }
+                    }
+                    
+                    SegmentRecorder.this.wait();
+                }
+            }
+        }
+        
+        /**
+         * @return true if frames were deleted before this cursor could read them, the
+         * current frame then follows a gap
+         */
+        public boolean hasGap() {
+            return mmGap;
+        }
+        
+        public long getCaptureTime() {
+            return mmSegment.getCaptureTime(mmIndex);
+        }
+        
+        public int getLength() {
+            return mmSegment.getLength(mmIndex);
+        }
+        
+        /**
+         * Send the image of the current frame straight from the file.
+         * @return number of bytes transferred
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (mmChannelSegment != mmSegment) {
+                close();
+                mmChannel = new RandomAccessFile(mmSegment.mmDataFile, "r").getChannel();
+                mmChannelSegment = mmSegment;
+            }
+            
+            long offset = mmSegment.getOffset(mmIndex);
+            long length = mmSegment.getLength(mmIndex);
+            long transferred = 0;
+            while (transferred < length) {
+                transferred += mmChannel.transferTo(offset + transferred, length - transferred, target);
+            }
+            
+            return transferred;
+        }
+        
+        public void close() {
+            if (mmChannel != null) {
+                try {
+                    mmChannel.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                mmChannel = null;
+                mmChannelSegment = null;
+            }
+        }
+    }
+    
+    private static final class Segment {
+        private final long mmStartTime;
+        private final File mmDataFile;
+        private final File mmIndexFile;
+        private final MappedByteBuffer mmIndex;
+        private final int mmMaxEntries;
+        private MappedByteBuffer mmData = null;
+        private int mmPosition = 0;
+        private int mmCount = 0;
+        private boolean mmFinished = false;
+        
+        private Segment(long startTime, File dataFile, File indexFile, MappedByteBuffer index) {
+            mmStartTime = startTime;
+            mmDataFile = dataFile;
+            mmIndexFile = indexFile;
+            mmIndex = index;
+            mmMaxEntries = index.capacity() / INDEX_ENTRY_SIZE;
+        }
+        
+        private static Segment create(File directory, long startTime, int size, int maxEntries)
+                throws IOException {
+            File dataFile = new File(directory, startTime + DATA_SUFFIX);
+            File indexFile = new File(directory, startTime + INDEX_SUFFIX);
+            
+            Segment segment = new Segment(startTime, dataFile, indexFile,
+                    map(indexFile, maxEntries * INDEX_ENTRY_SIZE));
+            segment.mmData = map(dataFile, size);
+            
+            return segment;
+        }
+        
+        /**
+         * Open a finished segment of an earlier recording.
+         */
+        private static Segment load(File directory, long startTime) throws IOException {
+            File dataFile = new File(directory, startTime + DATA_SUFFIX);
+            File indexFile = new File(directory, startTime + INDEX_SUFFIX);
+            
+            RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+            MappedByteBuffer index;
+            try {
+                index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            
+            Segment segment = new Segment(startTime, dataFile, indexFile, index);
+            while (segment.mmCount < segment.mmMaxEntries
+                    && segment.getCaptureTime(segment.mmCount) != 0) {
+                segment.mmCount++;
+            }
+            segment.mmFinished = true;
+            
+            return segment;
+        }
+        
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        
+        private boolean hasRoom(int length) {
+            return mmCount < mmMaxEntries && mmPosition + length <= mmData.capacity();
+        }
+        
+        /**
+         * Copy a frame into the data file and add its index entry.
+         * @return index of the entry
+         */
+        private int write(JpegFrame frame) {
+            int length = frame.getLength();
+            mmData.position(mmPosition);
+            mmData.put(frame.getData(), 0, length);
+            
+            int entry = mmCount * INDEX_ENTRY_SIZE;
+            mmIndex.putLong(entry, frame.getCaptureTime());
+            mmIndex.putInt(entry + 8, mmPosition);
+            mmIndex.putInt(entry + 12, length);
+            mmPosition += length;
+            
+            return mmCount;
+        }
+        
+        private void finish() {
+            mmData.force();
+            mmIndex.force();
+            mmData = null;
+            mmFinished = true;
+        }
+        
+        private void delete() {
+            mmDataFile.delete();
+            mmIndexFile.delete();
+        }
+        
+        private long getCaptureTime(int index) {
+            return mmIndex.getLong(index * INDEX_ENTRY_SIZE);
+        }
+        
+        private long getOffset(int index) {
+            return mmIndex.getInt(index * INDEX_ENTRY_SIZE + 8);
+        }
+        
+        private int getLength(int index) {
+            return mmIndex.getInt(index * INDEX_ENTRY_SIZE + 12);
+        }
+        
+        /**
+         * @return index of the first of the first count entries captured at or after a
+         * time, count if there is none
+         */
+        private int find(long time, int count) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getCaptureTime(middle) < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            
+            return low;
+        }
+    }
+}
@@ -3,20 +3,34 @@ package mi.cerdito.cam;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public abstract class SimpleServer implements Runnable {
+public abstract class SimpleServer implements Runnable, StreamingServer {
     public final static String TAG = "Acore";
     
-    private final CopyOnWriteArrayList<ConnectionThread> mConnectionThreads =
-            new CopyOnWriteArrayList<ConnectionThread>();
+    public final static int DEFAULT_MAX_WORKERS = 32;
+    private final static long WORKER_KEEP_ALIVE = 30;
+    
+    private final CopyOnWriteArrayList<Connection> mConnections =
+            new CopyOnWriteArrayList<Connection>();
     private Callback mCallback = null;
     
     private ServerSocket mServer;
     private volatile boolean mStopServer = true;
     private Thread mServerThread;
+    private ThreadPoolExecutor mWorkers;
+    private int mMaxWorkers = DEFAULT_MAX_WORKERS;
     
     public interface Callback {
         public void onConnect();
@@ -25,7 +39,15 @@ public abstract class SimpleServer implements Runnable {
     }
     
     protected abstract void handleConnection(Socket socket) throws IOException;
-
+    
+    /**
+     * Answer a connection that was accepted while every worker is busy. The default
+     * closes it; subclasses send a short protocol-level "busy" answer first. Called on
+     * the accept thread, so it must not block.
+     */
+    protected void rejectConnection(Socket socket) throws IOException {
+    }
+    
     public void run() {
         Log.v(TAG, "Server is running");
         
@@ -35,7 +57,7 @@ public abstract class SimpleServer implements Runnable {
                 
                 Log.v(TAG, "Accept socket: " + socket.getPort());
                 if (!mStopServer) {
-                    startConnectionThread(socket);
+                    startConnection(socket);
                 } else {
                     socket.close();
                 }
@@ -47,8 +69,34 @@ public abstract class SimpleServer implements Runnable {
         }
     }
     
+    /**
+     * Set how many connections are handled at the same time. Must be called before
+     * start(); connections beyond the limit are rejected.
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        mMaxWorkers = Math.max(1, maxWorkers);
+    }
+    
     public void start(int port) throws IOException {
-        mServer = new ServerSocket(port);
+        // opened through a channel so that accepted sockets support gathering writes
+        mServer = ServerSocketChannel.open().socket();
+        try {
+            mServer.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            mServer.close();
+            throw e;
+        }
+        
+        // no queue: a connection either gets a worker right away or is rejected
+        mWorkers = new ThreadPoolExecutor(0, mMaxWorkers, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mmCount = new AtomicInteger();
+                    
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "SimpleServer Worker" + mmCount.incrementAndGet());
+                    }
+                });
         
         mStopServer = false;
         mServerThread = new Thread(this);
@@ -65,8 +113,13 @@ public abstract class SimpleServer implements Runnable {
             }
         }
         
-        for (ConnectionThread connectionThread : mConnectionThreads) {
-            connectionThread.close();
+        for (Connection connection : mConnections) {
+            connection.close();
+        }
+        if (mWorkers != null) {
+            // interrupt workers waiting for a frame, their sockets are closed already
+            mWorkers.shutdownNow();
+            mWorkers = null;
         }
         
         mCallback = null;
@@ -76,25 +129,28 @@ public abstract class SimpleServer implements Runnable {
         mCallback = callback;
     }
     
+    /**
+     * @return number of connections being handled right now
+     */
     public int getNumberOfConnections() {
-        return mConnectionThreads.size();
+        return mConnections.size();
     }
     
     
-    private final class ConnectionThread extends Thread {
+    private final class Connection implements Runnable {
         private final Socket mmSocket;
         
-        private ConnectionThread(Socket socket) {
-            setName("SimpleServer ConnectionThread" + getId());
+        private Connection(Socket socket) {
             mmSocket = socket;
         }
         
         @Override
         public void run() {
-            Log.v(TAG, "Server thread " + getId() + " started");
+            Log.v(TAG, "Connection " + mmSocket.getPort() + " started");
             
-            if (mCallback != null) {
-                mCallback.onConnect();
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onConnect();
             }
             
             try {
@@ -103,30 +159,52 @@ public abstract class SimpleServer implements Runnable {
                 if (!mStopServer) {
                     Log.e(TAG, e.getMessage());
                 }
+            } finally {
+                mConnections.remove(this);
+                close();
             }
             
-            if (mCallback != null) {
-                mCallback.onDisconnect();
+            callback = mCallback;
+            if (callback != null) {
+                callback.onDisconnect();
             }
             
-            Log.v(TAG, "Server thread " + getId() + " died");
+            Log.v(TAG, "Connection " + mmSocket.getPort() + " closed");
         }
         
         private void close() {
-            if (mmSocket != null) {
-                try {
-                    mmSocket.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
-                }
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
             }
         }
     }
     
-    private void startConnectionThread(final Socket socket) {
-        ConnectionThread connectionThread = new ConnectionThread(socket);
-        mConnectionThreads.add(connectionThread);
+    private void startConnection(final Socket socket) {
+        Connection connection = new Connection(socket);
+        mConnections.add(connection);
         
-        connectionThread.start();
+        try {
+            mWorkers.execute(connection);
+        } catch (RejectedExecutionException e) {
+            mConnections.remove(connection);
+            Log.v(TAG, "All workers busy, reject " + socket.getPort());
+            try {
+                rejectConnection(socket);
+                socket.shutdownOutput();
+                
+                // drop what the client already sent, closing with unread data resets the
+                // connection before the answer is read
+                InputStream in = socket.getInputStream();
+                int available = in.available();
+                if (available > 0) {
+                    in.skip(available);
+                }
+            } catch (IOException ioe) {
+                // the connection is dropped anyway
+            }
+            connection.close();
+        }
     }
 }
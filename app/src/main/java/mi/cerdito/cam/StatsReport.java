@@ -0,0 +1,103 @@
+package mi.cerdito.cam;
+
+import java.util.List;
+
+/**
+ * Builds the JSON document served by /?action=stats: the encoder counters of the
+ * provider, see JpegFactory.getStats(), and one entry per stream client. Only counters
+ * that are kept anyway are read, so a report costs nothing while nobody asks for it.
+ */
+public class StatsReport {
+    private StatsReport() {
+    }
+    
+    /**
+     * @param jpegProvider provider of the full-size frames
+     * @param clients current stream clients
+     * @param connections number of open connections, including ones that are not streams
+     * @param startTime start time of the server in milliseconds
+     */
+    public static String build(JpegProvider jpegProvider, List<StreamClient> clients,
+                               int connections, long startTime) {
+        long now = System.currentTimeMillis();
+        long latestSequence = -1;
+        JpegFrame latest = jpegProvider.getFrame();
+        if (latest != null) {
+            latestSequence = latest.getSequence();
+            latest.release();
+        }
+        
+        StringBuilder json = new StringBuilder();
+        json.append("{\"encoder\":").append(jpegProvider.getStats());
+        json.append(",\"server\":{\"uptime\":").append(now - startTime);
+        json.append(",\"connections\":").append(connections).append('}');
+        json.append(",\"clients\":[");
+        for (int i = 0; i < clients.size(); i++) {
+            StreamClient client = clients.get(i);
+            long writeStartTime = client.getWriteStartTime();
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"address\":").append(quote(client.getAddress()));
+            json.append(",\"connected\":").append(now - client.getConnectTime());
+            json.append(",\"frames_sent\":").append(client.getFramesSent());
+            json.append(",\"bytes_sent\":").append(client.getBytesSent());
+            json.append(",\"frames_dropped\":").append(client.getFramesDropped());
+            json.append(",\"frames_skipped\":").append(client.getFramesSkipped());
+            json.append(",\"sequence\":").append(client.getSequence());
+            // frames behind the newest full-size frame
+            json.append(",\"lag\":").append(client.getSequence() >= 0 && latestSequence >= 0
+                    ? Math.max(0, latestSequence - client.getSequence()) : 0);
+            json.append(",\"writing\":").append(writeStartTime != 0 ? now - writeStartTime : 0);
+            json.append('}');
+        }
+        json.append("]}");
+        
+        return json.toString();
+    }
+    
+    /**
+     * @param histogram durations in microseconds
+     * @return count, mean, percentiles and maximum in milliseconds as a JSON object
+     */
+    public static String toJson(Histogram histogram) {
+        return toJson(histogram, "");
+    }
+    
+    /**
+     * @param members more members of the object, each preceded by a comma
+     */
+    public static String toJson(Histogram histogram, String members) {
+        return "{\"count\":" + histogram.getCount() +
+                ",\"mean\":" + toMillis(histogram.getMean()) +
+                ",\"p50\":" + toMillis(histogram.getPercentile(50)) +
+                ",\"p90\":" + toMillis(histogram.getPercentile(90)) +
+                ",\"p99\":" + toMillis(histogram.getPercentile(99)) +
+                ",\"max\":" + toMillis(histogram.getMax()) + members + "}";
+    }
+    
+    private static String toMillis(double micros) {
+        return String.valueOf(Math.round(micros / 10) / 100.0);
+    }
+    
+    /**
+     * @return a string as a JSON string literal
+     */
+    public static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        quoted.append('"');
+        
+        return quoted.toString();
+    }
+}
@@ -0,0 +1,148 @@
+package mi.cerdito.cam;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Book-keeping of one stream connection: what it was sent, what it had to skip and
+ * whether it is stuck in a write. Frames it missed while busy writing count as dropped,
+ * frames its pacing left out count as skipped.
+ */
+public class StreamClient {
+    private final String mAddress;
+    private final Closeable mConnection;
+    private final long mConnectTime;
+    
+    private volatile long mSequence = -1;
+    private volatile long mFramesSent = 0;
+    private volatile long mBytesSent = 0;
+    private volatile long mFramesDropped = 0;
+    private volatile long mFramesSkipped = 0;
+    // newest frame when the last write ended, without reports every gap is a drop
+    private long mLatestAtWriteEnd = Long.MAX_VALUE;
+    private volatile long mWriteStartTime = 0;
+    
+    public StreamClient(String address, Closeable connection) {
+        mAddress = address;
+        mConnection = connection;
+        mConnectTime = System.currentTimeMillis();
+    }
+    
+    public String getAddress() {
+        return mAddress;
+    }
+    
+    public long getConnectTime() {
+        return mConnectTime;
+    }
+    
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+    
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+    
+    /**
+     * @return number of preview frames this client skipped because it was still busy
+     * with an older one
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+    
+    /**
+     * @return number of preview frames left out by the pacing of this client, such as a
+     * lower frame rate or a latency limit
+     */
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+    
+    /**
+     * @return sequence number of the last frame handed to this client, -1 for none
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+    
+    /**
+     * Mark the start of writing a frame. Frames between the previous one and this one
+     * are counted as dropped up to the one reported by markWriteEnd(), the rest as
+     * skipped.
+     * @param frame frame about to be written
+     */
+    public void beginWrite(JpegFrame frame) {
+        if (mSequence >= 0 && frame.getSequence() > mSequence + 1) {
+            long gap = frame.getSequence() - mSequence - 1;
+            long dropped = Math.max(0,
+                    Math.min(mLatestAtWriteEnd, frame.getSequence() - 1) - mSequence);
+            mFramesDropped += dropped;
+            mFramesSkipped += gap - dropped;
+        }
+        mSequence = frame.getSequence();
+        mWriteStartTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Mark the start of a write that is not a whole frame, such as a tile update.
+     */
+    public void beginWrite() {
+        mWriteStartTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Mark the end of a write started with beginWrite().
+     * @param bytes number of bytes written
+     */
+    public void endWrite(long bytes) {
+        mWriteStartTime = 0;
+        mFramesSent++;
+        mBytesSent += bytes;
+    }
+    
+    /**
+     * Report the newest frame at the end of a write. Frames up to it came in while the
+     * client was busy; frames after it were only passed over by pacing.
+     * @param sequence sequence number of the newest frame
+     */
+    public void markWriteEnd(long sequence) {
+        mLatestAtWriteEnd = sequence;
+    }
+    
+    /**
+     * @return start time of the pending write in milliseconds, 0 if none is pending
+     */
+    public long getWriteStartTime() {
+        return mWriteStartTime;
+    }
+    
+    /**
+     * @param now current time in milliseconds
+     * @param timeout write deadline in milliseconds
+     * @return true if a write has been pending for longer than the deadline
+     */
+    public boolean isWriteOverdue(long now, long timeout) {
+        long start = mWriteStartTime;
+        
+        return start != 0 && now - start > timeout;
+    }
+    
+    /**
+     * Close the underlying connection, which also aborts a blocked write.
+     */
+    public void close() {
+        try {
+            mConnection.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return mAddress + " sent " + mFramesSent + " frames, dropped " + mFramesDropped +
+                ", skipped " + mFramesSkipped;
+    }
+}
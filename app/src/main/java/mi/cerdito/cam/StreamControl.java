@@ -0,0 +1,119 @@
+package mi.cerdito.cam;
+
+import java.util.StringTokenizer;
+
+/**
+ * Settings of a stream that its client can change while it runs. Changes come in as
+ * messages such as "pause", "resume", "fps=5" or "width=320&quality=40" and are picked
+ * up by the sending thread before its next frame.
+ */
+public class StreamControl {
+    private final JpegProvider mJpegProvider;
+    private boolean mPaused = false;
+    private int mFps;
+    private long mMaxLatency;
+    private int mWidth;
+    private int mQuality;
+    private FramePacer mPacer;
+    
+    /**
+     * @param jpegProvider provider of the full-size frames
+     * @param request request that started the stream, for the initial settings
+     */
+    public StreamControl(JpegProvider jpegProvider, HttpRequest request) {
+        mJpegProvider = jpegProvider;
+        mFps = request.getIntParameter("fps", 0);
+        mMaxLatency = request.getIntParameter("maxlatency", 0);
+        mWidth = request.getIntParameter("width", 0);
+        mQuality = request.getIntParameter("quality", 0);
+        mPacer = new FramePacer(mFps, mMaxLatency);
+    }
+    
+    /**
+     * Apply a control message.
+     * @return false if the message is not understood, nothing is changed then
+     */
+    public synchronized boolean apply(String message) {
+        message = message.trim();
+        if (message.equals("pause")) {
+            mPaused = true;
+            return true;
+        } else if (message.equals("resume")) {
+            mPaused = false;
+            return true;
+        }
+        
+        int fps = mFps;
+        int width = mWidth;
+        int quality = mQuality;
+        StringTokenizer pairs = new StringTokenizer(message, "&");
+        if (!pairs.hasMoreTokens()) {
+            return false;
+        }
+        while (pairs.hasMoreTokens()) {
+            String pair = pairs.nextToken();
+            int equalsIndex = pair.indexOf('=');
+            if (equalsIndex < 0) {
+                return false;
+            }
+            
+            String name = pair.substring(0, equalsIndex).trim();
+            int value;
+            try {
+                value = Integer.parseInt(pair.substring(equalsIndex + 1).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (value < 0) {
+                return false;
+            }
+            
+            if (name.equals("fps")) {
+                fps = value;
+            } else if (name.equals("width")) {
+                width = value;
+            } else if (name.equals("quality")) {
+                quality = value;
+            } else {
+                return false;
+            }
+        }
+        
+        if (fps != mFps) {
+            mFps = fps;
+            mPacer = new FramePacer(fps, mMaxLatency);
+        }
+        mWidth = width;
+        mQuality = quality;
+        
+        return true;
+    }
+    
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+    
+    /**
+     * @return the pacer for the current rate, replaced when the rate changes
+     */
+    public synchronized FramePacer getPacer() {
+        return mPacer;
+    }
+    
+    /**
+     * @return the provider of the current width and quality
+     */
+    public JpegProvider getProvider() {
+        int width;
+        int quality;
+        synchronized (this) {
+            width = mWidth;
+            quality = mQuality;
+        }
+        if (width == 0 && quality == 0) {
+            return mJpegProvider;
+        }
+        
+        return mJpegProvider.getRendition(width, quality);
+    }
+}
@@ -0,0 +1,391 @@
+package mi.cerdito.cam;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+
+/**
+ * Owns the camera, the encoder, the recorder and the servers of the process. The
+ * foreground activity and the background service only attach the surface the preview is
+ * shown on, so switching between them keeps the camera open and the viewers connected.
+ *
+ * The engine starts with the first attach and is released RELEASE_DELAY after the last
+ * detach. In between, the preview goes to an offscreen texture and frames keep flowing.
+ * It must only be used from the main thread.
+ */
+public class StreamingEngine {
+    public final String TAG = "Webcam";
+    
+    /**
+     * How long the engine keeps running without any surface, so that the next owner of
+     * the preview can attach.
+     */
+    public final static long RELEASE_DELAY = 10000;
+    
+    private static StreamingEngine sInstance = null;
+    
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<Object, SurfaceHolder> mSurfaces =
+            new LinkedHashMap<Object, SurfaceHolder>();
+    private SurfaceHolder mPreviewSurface = null;
+    private SurfaceTexture mOffscreenTexture = null;
+    
+    private Camera mCamera = null;
+    private JpegFactory mJpegFactory = null;
+    private StreamingServer mMjpegServer = null;
+    private SegmentRecorder mRecorder = null;
+    private RtspServer mRtspServer = null;
+    
+    private final Runnable mRelease = new Runnable() {
+        public void run() {
+            release();
+        }
+    };
+    
+    private StreamingEngine(Context context) {
+        mContext = context;
+    }
+    
+    public static StreamingEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StreamingEngine(context.getApplicationContext());
+        }
+        
+        return sInstance;
+    }
+    
+    /**
+     * Show the preview on a surface, starting the engine if it is not running. The
+     * surface attached last is the one used.
+     * @param owner activity or service the surface belongs to
+     * @return false if the engine could not start, a message has then been shown
+     */
+    public boolean attach(Object owner, SurfaceHolder holder) {
+        mHandler.removeCallbacks(mRelease);
+        if (mCamera == null && !start()) {
+            return false;
+        }
+        if (holder == mPreviewSurface && mSurfaces.containsKey(owner)) {
+            return true;
+        }
+        
+        if (!setPreviewSurface(holder)) {
+            // back to the surface attached before, if any
+            mSurfaces.remove(owner);
+            updatePreview();
+            return false;
+        }
+        mSurfaces.remove(owner);
+        mSurfaces.put(owner, holder);
+        
+        return true;
+    }
+    
+    /**
+     * Stop showing the preview on the surface of an owner. The preview moves to the
+     * surface attached before, or offscreen.
+     */
+    public void detach(Object owner) {
+        if (mSurfaces.remove(owner) == null || mCamera == null) {
+            return;
+        }
+        
+        updatePreview();
+    }
+    
+    /**
+     * Show the preview on the surface attached last, or offscreen until the engine is
+     * released if there is none.
+     */
+    private void updatePreview() {
+        SurfaceHolder last = null;
+        for (SurfaceHolder holder : mSurfaces.values()) {
+            last = holder;
+        }
+        if (last != mPreviewSurface) {
+            setPreviewSurface(last);
+        }
+        if (mSurfaces.isEmpty()) {
+            mHandler.postDelayed(mRelease, RELEASE_DELAY);
+        }
+    }
+    
+    /**
+     * Restart the preview on another surface. The camera, the encoder and the
+     * connections are kept, only a few preview frames are missed.
+     * @param holder surface, or null for the offscreen texture
+     * @return false if the surface can not be used, the preview is then offscreen
+     */
+    private boolean setPreviewSurface(SurfaceHolder holder) {
+        mJpegFactory.stopBufferedCapture();
+        mCamera.stopPreview();
+        try {
+            if (holder != null) {
+                mCamera.setPreviewDisplay(holder);
+            } else {
+                if (mOffscreenTexture == null) {
+                    mOffscreenTexture = new SurfaceTexture(0);
+                }
+                mCamera.setPreviewTexture(mOffscreenTexture);
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "SurfaceHolder is not available");
+            
+            Toast.makeText(mContext, "SurfaceHolder is not available",
+                    Toast.LENGTH_SHORT).show();
+            if (holder != null) {
+                setPreviewSurface(null);
+            }
+            return false;
+        }
+        mCamera.startPreview();
+        mJpegFactory.startBufferedCapture(mCamera, JpegFactory.DEFAULT_BUFFER_COUNT);
+        mPreviewSurface = holder;
+        
+        return true;
+    }
+    
+    private boolean start() {
+        Log.v(TAG, "Start streaming engine");
+        
+        int cameraId;
+        int previewWidth;
+        int previewHeight;
+        int rangeMin;
+        int rangeMax;
+        int quality;
+        int port;
+        int writeTimeout;
+        int maxStreams;
+        int maxSnapshots;
+        int minQuality;
+        int maxQuality;
+        int encoderThreads;
+        int keepAliveInterval;
+        int replaySeconds;
+        int replaySize;
+        int segmentSize;
+        int maxSegments;
+        int rtspPort;
+        int multicastPort;
+        
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String cameraIdString = preferences.getString("settings_camera", null);
+        String previewSizeString = preferences.getString("settings_size", null);
+        String rangeString = preferences.getString("settings_range", null);
+        String qualityString = preferences.getString("settings_quality", "50");
+        String portString = preferences.getString("settings_port", "8080");
+        String engineString = preferences.getString("settings_engine", "blocking");
+        String encoderString = preferences.getString("settings_encoder", "platform");
+        String encoderThreadsString = preferences.getString("settings_encoder_threads", "0");
+        boolean motion = preferences.getBoolean("settings_motion", false);
+        String keepAliveString = preferences.getString("settings_keepalive", "1000");
+        String replaySecondsString = preferences.getString("settings_replay_seconds", "0");
+        String replaySizeString = preferences.getString("settings_replay_size", "16");
+        boolean record = preferences.getBoolean("settings_record", false);
+        String segmentSizeString = preferences.getString("settings_segment_size", "32");
+        String maxSegmentsString = preferences.getString("settings_max_segments", "8");
+        boolean rtsp = preferences.getBoolean("settings_rtsp", false);
+        String rtspPortString = preferences.getString("settings_rtsp_port", "8554");
+        String multicastAddress = preferences.getString("settings_multicast_address", "");
+        String multicastPortString = preferences.getString("settings_multicast_port", "5004");
+        String writeTimeoutString = preferences.getString("settings_write_timeout", "5000");
+        String maxStreamsString = preferences.getString("settings_max_streams", "16");
+        String maxSnapshotsString = preferences.getString("settings_max_snapshots", "8");
+        String minQualityString = preferences.getString("settings_quality_min", "20");
+        String maxQualityString = preferences.getString("settings_quality_max", "90");
+        boolean adaptive = preferences.getBoolean("settings_adaptive", false);
+        boolean adaptiveSize = preferences.getBoolean("settings_adaptive_size", false);
+        
+        // if failed, it means settings is broken.
+        assert(cameraIdString != null && previewSizeString != null && rangeString != null);
+        
+        int xIndex = previewSizeString.indexOf("x");
+        int tildeIndex = rangeString.indexOf("~");
+        
+        // if failed, it means settings is broken.
+        assert(xIndex > 0 && tildeIndex > 0);
+        
+        try {
+            cameraId = Integer.parseInt(cameraIdString);
+            
+            previewWidth = Integer.parseInt(previewSizeString.substring(0, xIndex - 1));
+            previewHeight = Integer.parseInt(previewSizeString.substring(xIndex + 2));
+            
+            rangeMin = Integer.parseInt(rangeString.substring(0, tildeIndex - 1));
+            rangeMax = Integer.parseInt(rangeString.substring(tildeIndex + 2));
+            
+            quality = Integer.parseInt(qualityString);
+            minQuality = Integer.parseInt(minQualityString);
+            maxQuality = Integer.parseInt(maxQualityString);
+            encoderThreads = Integer.parseInt(encoderThreadsString);
+            keepAliveInterval = Integer.parseInt(keepAliveString);
+            replaySeconds = Integer.parseInt(replaySecondsString);
+            replaySize = Integer.parseInt(replaySizeString);
+            segmentSize = Integer.parseInt(segmentSizeString);
+            maxSegments = Integer.parseInt(maxSegmentsString);
+            rtspPort = Integer.parseInt(rtspPortString);
+            multicastPort = Integer.parseInt(multicastPortString);
+            writeTimeout = Integer.parseInt(writeTimeoutString);
+            maxStreams = Integer.parseInt(maxStreamsString);
+            maxSnapshots = Integer.parseInt(maxSnapshotsString);
+            port = Integer.parseInt(portString);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Settings is broken");
+            Toast.makeText(mContext, "Settings is broken", Toast.LENGTH_SHORT).show();
+            
+            return false;
+        }
+        
+        mCamera = Camera.open(cameraId);
+        if (mCamera == null) {
+            Log.v(TAG, "Can't open camera" + cameraId);
+            
+            Toast.makeText(mContext, mContext.getString(R.string.can_not_open_camera),
+                    Toast.LENGTH_SHORT).show();
+            
+            return false;
+        }
+        
+        Parameters parameters = mCamera.getParameters();
+        parameters.setPreviewSize(previewWidth, previewHeight);
+        parameters.setPreviewFpsRange(rangeMin, rangeMax);
+        mCamera.setParameters(parameters);
+        
+        mJpegFactory = new JpegFactory(previewWidth,
+                previewHeight, quality);
+        if (adaptive && rangeMax > 0) {
+            mJpegFactory.setQualityController(new QualityController(quality,
+                    minQuality, maxQuality, 1000000 / rangeMax, adaptiveSize));
+        }
+        mJpegFactory.setJavaEncoder(encoderString.equals("java"));
+        // 0 means one encoder thread per core
+        mJpegFactory.setEncoderThreads(encoderThreads > 0
+                ? encoderThreads : Runtime.getRuntime().availableProcessors());
+        mJpegFactory.setKeepAliveInterval(motion ? keepAliveInterval : 0);
+        if (replaySeconds > 0 && replaySize > 0) {
+            mJpegFactory.setReplayBuffer(new ReplayBuffer(replaySize * 1024 * 1024,
+                    replaySeconds * 1000L));
+        }
+        mJpegFactory.start();
+        if (record && segmentSize > 0 && maxSegments > 0) {
+            File directory = mContext.getExternalFilesDir(null);
+            if (directory == null) {
+                directory = mContext.getFilesDir();
+            }
+            mRecorder = new SegmentRecorder(new File(directory, "recordings"), mJpegFactory,
+                    segmentSize * 1024L * 1024, maxSegments);
+            mRecorder.start();
+        }
+        
+        if (engineString.equals("nio")) {
+            mMjpegServer = new NioMjpegServer(mJpegFactory);
+        } else {
+            mMjpegServer = new MjpegServer(mJpegFactory);
+        }
+        mMjpegServer.setWriteTimeout(writeTimeout);
+        mMjpegServer.setConcurrencyLimits(maxStreams, maxSnapshots);
+        mMjpegServer.setRecorder(mRecorder);
+        try {
+            mMjpegServer.start(port);
+        } catch (IOException e) {
+            String message = "Port: " + port + " is not available";
+            Log.v(TAG, message);
+            
+            Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+            mMjpegServer = null;
+            release();
+            
+            return false;
+        }
+        
+        if (rtsp) {
+            mRtspServer = new RtspServer(mJpegFactory);
+            mRtspServer.setConcurrencyLimits(maxStreams, 0);
+            if (multicastAddress.length() > 0) {
+                try {
+                    InetAddress group = InetAddress.getByName(multicastAddress);
+                    if (group.isMulticastAddress()) {
+                        mRtspServer.setMulticast(group, multicastPort,
+                                RtspServer.DEFAULT_MULTICAST_TTL);
+                    } else {
+                        Log.e(TAG, "Not a multicast address: " + multicastAddress);
+                    }
+                } catch (UnknownHostException e) {
+                    Log.e(TAG, "Invalid multicast address: " + multicastAddress);
+                }
+            }
+            try {
+                mRtspServer.start(rtspPort);
+            } catch (IOException e) {
+                String message = "RTSP port: " + rtspPort + " is not available";
+                Log.v(TAG, message);
+                
+                Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+                mRtspServer = null;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Close the servers, the recorder and the encoder, and release the camera.
+     */
+    private void release() {
+        Log.v(TAG, "Release streaming engine");
+        
+        mHandler.removeCallbacks(mRelease);
+        mSurfaces.clear();
+        mPreviewSurface = null;
+        
+        if (mCamera != null) {
+            if (mJpegFactory != null) {
+                mJpegFactory.stopBufferedCapture();
+            }
+            mCamera.stopPreview();
+            mCamera.release();
+            mCamera = null;
+        }
+        
+        if (mOffscreenTexture != null) {
+            mOffscreenTexture.release();
+            mOffscreenTexture = null;
+        }
+        
+        if (mMjpegServer != null) {
+            mMjpegServer.close();
+            mMjpegServer = null;
+        }
+        
+        if (mRtspServer != null) {
+            mRtspServer.close();
+            mRtspServer = null;
+        }
+        
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+        
+        if (mJpegFactory != null) {
+            mJpegFactory.close();
+            mJpegFactory = null;
+        }
+    }
+}
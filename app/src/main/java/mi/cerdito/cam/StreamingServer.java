@@ -0,0 +1,46 @@
+package mi.cerdito.cam;
+
+import java.io.IOException;
+import java.util.List;
+
+public interface StreamingServer {
+    /**
+     * Start listening on the given port.
+     * @param port TCP port
+     * @throws IOException if the port is not available
+     */
+    public void start(int port) throws IOException;
+    
+    /**
+     * Stop listening and close every connection.
+     */
+    public void close();
+    
+    public void setCallback(SimpleServer.Callback callback);
+    
+    public int getNumberOfConnections();
+    
+    /**
+     * Set how long a stream connection may be stuck writing one frame before it is closed.
+     * @param timeout write deadline in milliseconds
+     */
+    public void setWriteTimeout(long timeout);
+    
+    /**
+     * Set the recorder whose segments are served as playback streams.
+     * @param recorder recorder, or null to disable playback
+     */
+    public void setRecorder(SegmentRecorder recorder);
+    
+    /**
+     * Set how many streams and snapshots may be served at the same time. Requests above
+     * the limits are answered with 503 Service Unavailable and a Retry-After header. Must
+     * be called before start().
+     */
+    public void setConcurrencyLimits(int maxStreams, int maxSnapshots);
+    
+    /**
+     * @return the currently connected stream clients
+     */
+    public List<StreamClient> getStreamClients();
+}
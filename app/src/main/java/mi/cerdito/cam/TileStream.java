@@ -0,0 +1,265 @@
+package mi.cerdito.cam;
+
+/**
+ * Splits the full-size frames into a fixed grid of tiles and re-encodes only the tiles
+ * whose luma changed, for clients that composite them on a canvas. Every tile keeps its
+ * latest image tagged with the sequence number it was encoded at, so a client that fell
+ * behind catches up by sending whatever changed since its own version of each tile.
+ */
+public class TileStream {
+    public final static int TILE_SIZE = 64;
+    private final static int SAMPLE_STEP = 4;
+    private final static int DEFAULT_THRESHOLD = 6;
+    private final static int POOL_SIZE = 8;
+    private final static int MESSAGE_HEADER_SIZE = 10;
+    private final static int TILE_HEADER_SIZE = 8;
+    
+    private final JpegFactory mFactory;
+    private final int mWidth;
+    private final int mHeight;
+    private final Tile[] mTiles;
+    private final JpegFramePool mPool = new JpegFramePool(POOL_SIZE);
+    private final byte[] mTileData = new byte[TILE_SIZE * TILE_SIZE * 3 / 2];
+    private volatile int mThreshold = DEFAULT_THRESHOLD;
+    
+    private final Object mLock = new Object();
+    private long mVersion = -1;
+    
+    TileStream(JpegFactory factory, int width, int height) {
+        mFactory = factory;
+        mWidth = width;
+        mHeight = height;
+        
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mTiles = new Tile[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                mTiles[row * columns + column] = new Tile(x, y,
+                        Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+            }
+        }
+    }
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    public int getTileCount() {
+        return mTiles.length;
+    }
+    
+    /**
+     * @param threshold mean absolute luma difference at which a tile is re-encoded
+     */
+    public void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+    
+    public void addConsumer() {
+        mFactory.addConsumer(this);
+    }
+    
+    public void removeConsumer() {
+        mFactory.removeConsumer(this);
+    }
+    
+    /**
+     * Re-encode the tiles that changed. Only called by the encoder thread of the factory.
+     */
+    void update(byte[] data, long sequence, long captureTime) {
+        boolean changed = false;
+        int threshold = mThreshold;
+        for (Tile tile : mTiles) {
+            if (tile.mmEncoded && tile.getDifference(data) <= threshold) {
+                continue;
+            }
+            
+            tile.crop(data, mTileData);
+            JpegFrame frame = mPool.obtain(sequence, captureTime);
+            mFactory.encode(frame, mTileData, tile.mmWidth, tile.mmHeight);
+            tile.setFrame(frame);
+            changed = true;
+        }
+        
+        if (changed) {
+            synchronized (mLock) {
+                mVersion = sequence;
+                mLock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Wait until a tile changes after the given version.
+     * @param timeout maximum time to wait in milliseconds, 0 to wait forever
+     * @return the latest version, the given one if the timeout elapsed
+     */
+    public long awaitVersion(long version, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            while (mVersion <= version) {
+                if (timeout == 0) {
+                    mLock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    mLock.wait(remaining);
+                }
+            }
+            
+            return Math.max(mVersion, version);
+        }
+    }
+    
+    /**
+     * Write the tiles a client has not got yet as one message. All numbers are big
+     * endian: u32 length of the rest of the message, u16 frame width, u16 frame height,
+     * u16 tile count, then for every tile u16 x, u16 y, u32 image length and the JPEG
+     * image.
+     * @param out buffer for the message, reset first
+     * @param versions version of every tile the client has, -1 for none; updated
+     * @param all whether to write every tile, for a full refresh
+     * @return number of tiles in the message
+     */
+    public int writeMessage(JpegBuffer out, long[] versions, boolean all) {
+        out.reset();
+        // filled in at the end
+        for (int i = 0; i < MESSAGE_HEADER_SIZE; i++) {
+            out.write(0);
+        }
+        
+        int count = 0;
+        for (int i = 0; i < mTiles.length; i++) {
+            Tile tile = mTiles[i];
+            JpegFrame frame = tile.getFrame();
+            if (frame == null) {
+                continue;
+            }
+            
+            if (all || frame.getSequence() > versions[i]) {
+                out.ensureCapacity(TILE_HEADER_SIZE + frame.getLength());
+                out.write(tile.mmX >> 8);
+                out.write(tile.mmX);
+                out.write(tile.mmY >> 8);
+                out.write(tile.mmY);
+                out.write(frame.getLength() >> 24);
+                out.write(frame.getLength() >> 16);
+                out.write(frame.getLength() >> 8);
+                out.write(frame.getLength());
+                out.write(frame.getData(), 0, frame.getLength());
+                
+                versions[i] = frame.getSequence();
+                count++;
+            }
+            frame.release();
+        }
+        
+        byte[] data = out.getData();
+        putInt(data, 0, out.getLength() - 4);
+        putShort(data, 4, mWidth);
+        putShort(data, 6, mHeight);
+        putShort(data, 8, count);
+        
+        return count;
+    }
+    
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+    
+    private static void putInt(byte[] data, int offset, int value) {
+        putShort(data, offset, value >> 16);
+        putShort(data, offset + 2, value);
+    }
+    
+    private final class Tile {
+        private final int mmX;
+        private final int mmY;
+        private final int mmWidth;
+        private final int mmHeight;
+        private final byte[] mmReference;
+        private boolean mmEncoded = false;
+        private JpegFrame mmFrame = null;
+        
+        private Tile(int x, int y, int width, int height) {
+            mmX = x;
+            mmY = y;
+            mmWidth = width;
+            mmHeight = height;
+            mmReference = new byte[((width + SAMPLE_STEP - 1) / SAMPLE_STEP)
+                    * ((height + SAMPLE_STEP - 1) / SAMPLE_STEP)];
+        }
+        
+        /**
+         * @return mean absolute luma difference to the samples taken when the tile was
+         * last encoded
+         */
+        private int getDifference(byte[] data) {
+            int sum = 0;
+            int count = 0;
+            for (int y = mmY; y < mmY + mmHeight; y += SAMPLE_STEP) {
+                int offset = y * mWidth;
+                for (int x = mmX; x < mmX + mmWidth; x += SAMPLE_STEP) {
+                    sum += Math.abs((data[offset + x] & 0xFF) - (mmReference[count] & 0xFF));
+                    count++;
+                }
+            }
+            
+            return sum / count;
+        }
+        
+        /**
+         * Copy the tile out of the frame as an NV21 image and keep its luma samples.
+         */
+        private void crop(byte[] data, byte[] tileData) {
+            int count = 0;
+            for (int y = mmY; y < mmY + mmHeight; y += SAMPLE_STEP) {
+                int offset = y * mWidth;
+                for (int x = mmX; x < mmX + mmWidth; x += SAMPLE_STEP) {
+                    mmReference[count++] = data[offset + x];
+                }
+            }
+            mmEncoded = true;
+            
+            for (int row = 0; row < mmHeight; row++) {
+                System.arraycopy(data, (mmY + row) * mWidth + mmX, tileData, row * mmWidth, mmWidth);
+            }
+            int chroma = mWidth * mHeight;
+            int tileChroma = mmWidth * mmHeight;
+            for (int row = 0; row < mmHeight / 2; row++) {
+                System.arraycopy(data, chroma + (mmY / 2 + row) * mWidth + mmX,
+                        tileData, tileChroma + row * mmWidth, mmWidth);
+            }
+        }
+        
+        private void setFrame(JpegFrame frame) {
+            JpegFrame previous;
+            synchronized (mLock) {
+                previous = mmFrame;
+                mmFrame = frame;
+            }
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        
+        /**
+         * @return the latest image of the tile, to be released by the caller, or null
+         */
+        private JpegFrame getFrame() {
+            synchronized (mLock) {
+                return mmFrame != null ? mmFrame.retain() : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package mi.cerdito.cam;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * android.os.Trace sections on the devices that have them (API 18 and later), so the
+ * stages of a frame show up in systrace next to the camera and the network stack.
+ */
+public class Tracer {
+    private final static boolean ENABLED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    
+    private Tracer() {
+    }
+    
+    /**
+     * Begin a section on the calling thread; it must be ended on the same thread.
+     */
+    public static void begin(String name) {
+        if (ENABLED) {
+            Trace.beginSection(name);
+        }
+    }
+    
+    public static void end() {
+        if (ENABLED) {
+            Trace.endSection();
+        }
+    }
+}
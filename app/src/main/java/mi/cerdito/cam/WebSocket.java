@@ -0,0 +1,337 @@
+package mi.cerdito.cam;
+
+import android.util.Base64;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Server side of a WebSocket connection (RFC 6455) after the HTTP upgrade. Writes are
+ * synchronized, so messages may be read and written by different threads; pings are
+ * answered by the reading thread.
+ */
+public class WebSocket {
+    private final static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private final static int OPCODE_CONTINUATION = 0x0;
+    private final static int OPCODE_TEXT = 0x1;
+    private final static int OPCODE_BINARY = 0x2;
+    private final static int OPCODE_CLOSE = 0x8;
+    private final static int OPCODE_PING = 0x9;
+    private final static int OPCODE_PONG = 0xa;
+    private final static int MAX_HEADER_SIZE = 10;
+    private final static int NO_FRAME = -2;
+    
+    /**
+     * Close code sent when a text message is longer than the limit.
+     */
+    public final static int CLOSE_TOO_BIG = 1009;
+    public final static int CLOSE_NORMAL = 1000;
+    /**
+     * Close code sent when a frame breaks the protocol, such as an unmasked client frame.
+     */
+    public final static int CLOSE_PROTOCOL_ERROR = 1002;
+    
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final int mMaxTextLength;
+    private final Object mWriteLock = new Object();
+    private final ByteBuffer mHeader = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    private final ByteBuffer[] mMessage = new ByteBuffer[3];
+    private final byte[] mMask = new byte[4];
+    private byte[] mText;
+    // length of the text message received so far, -1 between messages
+    private int mTextLength = -1;
+    private boolean mClosed = false;
+    private boolean mCloseSent = false;
+    
+    /**
+     * @param maxTextLength maximum length of a received text message in bytes
+     */
+    public WebSocket(Socket socket, int maxTextLength) throws IOException {
+        mSocket = socket;
+        mIn = new DataInputStream(socket.getInputStream());
+        mOut = socket.getOutputStream();
+        mMaxTextLength = maxTextLength;
+        mText = new byte[Math.min(maxTextLength, 256)];
+    }
+    
+    /**
+     * @param key value of the Sec-WebSocket-Key header
+     * @return value of the Sec-WebSocket-Accept header
+     */
+    public static String getAcceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + GUID).getBytes("ASCII"));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * @param request upgrade request with its headers read
+     * @return true if the request asks for a WebSocket
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.getHeader("upgrade");
+        return upgrade != null && upgrade.equalsIgnoreCase("websocket")
+                && request.getHeader("sec-websocket-key") != null;
+    }
+    
+    /**
+     * @return the response accepting an upgrade request
+     */
+    public static String buildUpgradeResponse(HttpRequest request) {
+        return "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + getAcceptKey(request.getHeader("sec-websocket-key")) +
+                "\r\n\r\n";
+    }
+    
+    /**
+     * Send one binary message made of a header and a body.
+     * @return number of bytes written, framing included
+     */
+    public long writeBinary(ByteBuffer header, ByteBuffer body) throws IOException {
+        synchronized (mWriteLock) {
+            long length = header.remaining() + body.remaining();
+            writeFrameHeader(OPCODE_BINARY, length);
+            
+            SocketChannel channel = mSocket.getChannel();
+            long bytes = mHeader.remaining() + length;
+            if (channel == null) {
+                mOut.write(mHeader.array(), 0, mHeader.remaining());
+                writeBuffer(header);
+                writeBuffer(body);
+                mOut.flush();
+                return bytes;
+            }
+            
+            mMessage[0] = mHeader;
+            mMessage[1] = header;
+            mMessage[2] = body;
+            while (body.hasRemaining()) {
+                channel.write(mMessage);
+            }
+            mMessage[1] = null;
+            mMessage[2] = null;
+            
+            return bytes;
+        }
+    }
+    
+    /**
+     * Send a text message.
+     */
+    public void writeText(String text) throws IOException {
+        byte[] data = text.getBytes("UTF-8");
+        synchronized (mWriteLock) {
+            writeFrameHeader(OPCODE_TEXT, data.length);
+            mOut.write(mHeader.array(), 0, mHeader.remaining());
+            mOut.write(data);
+            mOut.flush();
+        }
+    }
+    
+    /**
+     * Send a close frame, once.
+     */
+    public void close(int code) throws IOException {
+        synchronized (mWriteLock) {
+            if (mCloseSent) {
+                return;
+            }
+            mCloseSent = true;
+            
+            writeFrameHeader(OPCODE_CLOSE, 2);
+            mOut.write(mHeader.array(), 0, mHeader.remaining());
+            mOut.write(code >> 8);
+            mOut.write(code);
+            mOut.flush();
+        }
+    }
+    
+    /**
+     * Wait for the next text message. Pings are answered and binary messages are skipped.
+     * @return the message, or null if the client closed the connection
+     * @throws ProtocolException if the client sent an unmasked frame or an invalid length,
+     * the connection is closed with CLOSE_PROTOCOL_ERROR first
+     */
+    public String readText() throws IOException {
+        return readText(0);
+    }
+    
+    /**
+     * Read the next text message if the client starts sending it in time. Once a frame has
+     * begun, the rest of it is read with the timeout of the socket.
+     * @param timeout maximum time in milliseconds to wait for each frame to begin, 0 to
+     * wait forever
+     * @return the message, or null if none came in time or the connection is closed, see
+     * isClosed()
+     * @throws ProtocolException if the client sent an unmasked frame or an invalid length,
+     * the connection is closed with CLOSE_PROTOCOL_ERROR first
+     */
+    public String readText(int timeout) throws IOException {
+        while (true) {
+            int first = readFrameStart(timeout);
+            if (first == NO_FRAME) {
+                return null;
+            }
+            if (first < 0) {
+                mClosed = true;
+                return null;
+            }
+            int second = mIn.readUnsignedByte();
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0f;
+            long payloadLength = second & 0x7f;
+            if (payloadLength == 126) {
+                payloadLength = mIn.readUnsignedShort();
+            } else if (payloadLength == 127) {
+                payloadLength = mIn.readLong();
+            }
+            if (payloadLength < 0) {
+                throw protocolError("Invalid payload length");
+            }
+            // clients must mask every frame (RFC 6455 section 5.1)
+            if ((second & 0x80) == 0) {
+                throw protocolError("Unmasked client frame");
+            }
+            mIn.readFully(mMask);
+            
+            if (opcode == OPCODE_CLOSE) {
+                skip(payloadLength);
+                close(CLOSE_NORMAL);
+                mClosed = true;
+                return null;
+            } else if (opcode == OPCODE_PING) {
+                if (payloadLength > 125) {
+                    throw protocolError("Invalid ping");
+                }
+                byte[] payload = new byte[(int) payloadLength];
+                readPayload(payload, 0, payload.length);
+                synchronized (mWriteLock) {
+                    writeFrameHeader(OPCODE_PONG, payload.length);
+                    mOut.write(mHeader.array(), 0, mHeader.remaining());
+                    mOut.write(payload);
+                    mOut.flush();
+                }
+            } else if (opcode == OPCODE_TEXT
+                    || (opcode == OPCODE_CONTINUATION && mTextLength >= 0)) {
+                int length = Math.max(mTextLength, 0);
+                if (length + payloadLength > mMaxTextLength) {
+                    close(CLOSE_TOO_BIG);
+                    mClosed = true;
+                    return null;
+                }
+                if (length + payloadLength > mText.length) {
+                    byte[] larger = new byte[mMaxTextLength];
+                    System.arraycopy(mText, 0, larger, 0, length);
+                    mText = larger;
+                }
+                readPayload(mText, length, (int) payloadLength);
+                mTextLength = length + (int) payloadLength;
+                
+                if (fin) {
+                    length = mTextLength;
+                    mTextLength = -1;
+                    return new String(mText, 0, length, "UTF-8");
+                }
+            } else {
+                // binary messages and pongs are not used
+                skip(payloadLength);
+            }
+        }
+    }
+    
+    /**
+     * @return true once the client has closed the connection, or a message was refused
+     * and the connection closed
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+    
+    /**
+     * @return the first byte of the next frame, -1 at the end of the stream, or NO_FRAME
+     * if the frame did not begin within timeout
+     */
+    private int readFrameStart(int timeout) throws IOException {
+        if (timeout == 0) {
+            return mIn.read();
+        }
+        
+        int soTimeout = mSocket.getSoTimeout();
+        mSocket.setSoTimeout(timeout);
+        try {
+            return mIn.read();
+        } catch (SocketTimeoutException e) {
+            return NO_FRAME;
+        } finally {
+            mSocket.setSoTimeout(soTimeout);
+        }
+    }
+    
+    private ProtocolException protocolError(String message) throws IOException {
+        close(CLOSE_PROTOCOL_ERROR);
+        mClosed = true;
+        return new ProtocolException(message);
+    }
+    
+    private void readPayload(byte[] buffer, int offset, int length) throws IOException {
+        mIn.readFully(buffer, offset, length);
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] ^= mMask[i & 3];
+        }
+    }
+    
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            int skipped = mIn.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            length -= skipped;
+        }
+    }
+    
+    private void writeFrameHeader(int opcode, long length) {
+        mHeader.clear();
+        mHeader.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            mHeader.put((byte) length);
+        } else if (length < 0x10000) {
+            mHeader.put((byte) 126);
+            mHeader.putShort((short) length);
+        } else {
+            mHeader.put((byte) 127);
+            mHeader.putLong(length);
+        }
+        mHeader.flip();
+    }
+    
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            mOut.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            while (buffer.hasRemaining()) {
+                mOut.write(buffer.get());
+            }
+        }
+    }
+}
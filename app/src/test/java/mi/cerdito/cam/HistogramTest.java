@@ -0,0 +1,125 @@
+package mi.cerdito.cam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void getPercentile_exactForSmallValues() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+        
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3.5, histogram.getMean(), 0);
+    }
+    
+    @Test
+    public void getPercentile_withinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+        // buckets are 1/8 of a power of two wide and percentiles their upper bound
+        assertInBucket(50000, histogram.getPercentile(50));
+        assertInBucket(90000, histogram.getPercentile(90));
+        assertInBucket(99000, histogram.getPercentile(99));
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+    
+    @Test
+    public void record_largeAndNegativeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(1L << 50);
+        
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(1L << 50, histogram.getMax());
+        // values beyond the range share the top bucket
+        assertEquals((1L << 40) - 1, histogram.getPercentile(100));
+    }
+    
+    @Test
+    public void getPercentile_empty() {
+        Histogram histogram = new Histogram();
+        
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+    
+    @Test
+    public void add_mergesValues() {
+        Histogram first = new Histogram();
+        Histogram second = new Histogram();
+        first.record(2);
+        first.record(4);
+        second.record(1000);
+        
+        first.add(second);
+        
+        assertEquals(3, first.getCount());
+        assertEquals(1000, first.getMax());
+        assertEquals(4, first.getPercentile(66));
+        assertEquals(1000, first.getPercentile(100));
+        assertEquals(1, second.getCount());
+    }
+    
+    @Test
+    public void record_concurrentThreads() throws Exception {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999, histogram.getMax());
+        assertEquals(4999.5, histogram.getMean(), 0.001);
+    }
+    
+    @Test
+    public void rollingHistogram_oldValuesAgeOut() throws Exception {
+        RollingHistogram histogram = new RollingHistogram(50);
+        histogram.record(1000);
+        assertEquals(1000, histogram.getSnapshot().getMax());
+        
+        Thread.sleep(80);
+        histogram.record(5);
+        // the previous window is still part of the snapshot
+        Histogram snapshot = histogram.getSnapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        
+        Thread.sleep(80);
+        histogram.record(7);
+        snapshot = histogram.getSnapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(7, snapshot.getMax());
+    }
+    
+    private static void assertInBucket(long expected, long percentile) {
+        assertTrue("percentile " + percentile + " for " + expected,
+                percentile >= expected && percentile <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,158 @@
+package mi.cerdito.cam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads requests sent by a client socket on the loopback interface.
+ */
+public class HttpRequestReaderTest {
+    private final static long TIMEOUT = 2000;
+    
+    private ServerSocket mServer;
+    private Socket mClient;
+    private Socket mSocket;
+    
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.getLocalPort());
+        mSocket = mServer.accept();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        mClient.close();
+        mSocket.close();
+        mServer.close();
+    }
+    
+    @Test
+    public void read_parsesRequestLineAndHeaders() throws Exception {
+        send("GET /?action=snapshot&width=320&name=a%20b HTTP/1.1\r\n" +
+                "Host: camera\r\n" +
+                "IF-None-Match :  \"12-3\" \r\n" +
+                "Connection:keep-alive\r\n" +
+                "\r\n");
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        
+        HttpRequest request = reader.read(TIMEOUT);
+        
+        assertNotNull(request);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("snapshot", request.getAction());
+        assertEquals(320, request.getIntParameter("width", 0));
+        assertEquals(-1, request.getLongParameter("after", -1));
+        assertEquals("a b", request.getParameter("name"));
+        assertEquals("camera", request.getHeader("host"));
+        assertEquals("\"12-3\"", request.getHeader("if-none-match"));
+        assertEquals("keep-alive", request.getHeader("Connection"));
+        assertNull(request.getHeader("upgrade"));
+    }
+    
+    @Test
+    public void read_keepsPipelinedRequest() throws Exception {
+        send("GET /?action=stats HTTP/1.1\r\n\r\n" +
+                "\r\n" +
+                "GET /?action=snapshot HTTP/1.1\r\nHost: camera\r\n\r\n");
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        
+        HttpRequest first = reader.read(TIMEOUT);
+        HttpRequest second = reader.read(TIMEOUT);
+        
+        assertEquals("stats", first.getAction());
+        assertNull(first.getHeader("host"));
+        assertEquals("snapshot", second.getAction());
+        assertEquals("camera", second.getHeader("host"));
+    }
+    
+    @Test
+    public void read_terminatorSplitBetweenReads() throws Exception {
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        send("GET /?action=stream HTTP/1.0\r\nHost: camera\r\n\r");
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    send("\n");
+                } catch (Exception e) {
+                    // the read times out and the test fails
+                }
+            }
+        };
+        sender.start();
+        
+        HttpRequest request = reader.read(TIMEOUT);
+        sender.join();
+        
+        assertNotNull(request);
+        assertEquals("stream", request.getAction());
+        assertEquals("camera", request.getHeader("host"));
+    }
+    
+    @Test
+    public void read_headersTooLarge() throws Exception {
+        send("GET /?action=snapshot HTTP/1.1\r\n" +
+                "Cookie: 0123456789012345678901234567890123456789\r\n\r\n");
+        HttpRequestReader reader = new HttpRequestReader(mSocket, 48);
+        
+        assertNull(reader.read(TIMEOUT));
+        assertTrue(reader.isOverflow());
+        assertFalse(reader.isMalformed());
+    }
+    
+    @Test
+    public void read_malformedRequestLine() throws Exception {
+        send("GARBAGE\r\n\r\n");
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        
+        assertNull(reader.read(TIMEOUT));
+        assertTrue(reader.isMalformed());
+        assertFalse(reader.isOverflow());
+    }
+    
+    @Test
+    public void read_incompleteRequestTimesOut() throws Exception {
+        send("GET /?action=snapshot HTTP/1.1\r\nHost: cam");
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        
+        long start = System.currentTimeMillis();
+        assertNull(reader.read(200));
+        
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        assertFalse(reader.isOverflow());
+        assertFalse(reader.isMalformed());
+    }
+    
+    @Test
+    public void read_closedConnection() throws Exception {
+        mClient.close();
+        HttpRequestReader reader = new HttpRequestReader(mSocket,
+                HttpRequestReader.DEFAULT_MAX_HEADER_SIZE);
+        
+        assertNull(reader.read(TIMEOUT));
+        assertFalse(reader.isMalformed());
+    }
+    
+    private void send(String data) throws Exception {
+        OutputStream out = mClient.getOutputStream();
+        out.write(data.getBytes("ASCII"));
+        out.flush();
+    }
+}
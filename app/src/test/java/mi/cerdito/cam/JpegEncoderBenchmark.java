@@ -0,0 +1,60 @@
+package mi.cerdito.cam;
+
+/**
+ * Measures the Java encoders on the host JVM. It is not run with the unit tests; start
+ * main() from the IDE or with java on the unit test classpath, optionally passing the
+ * number of threads of the parallel encoder.
+ *
+ * For each preview size it prints the average time per frame and the throughput in
+ * megapixels per second, after a warm-up so that the JIT has compiled the encoder.
+ */
+public class JpegEncoderBenchmark {
+    private final static int[][] SIZES = {{320, 240}, {640, 480}, {1280, 720}};
+    private final static int QUALITY = 50;
+    private final static int WARM_UP_FRAMES = 50;
+    private final static int FRAMES = 200;
+    
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        
+        JpegEncoder encoder = new JpegEncoder();
+        ParallelJpegEncoder parallelEncoder = new ParallelJpegEncoder(threads);
+        try {
+            for (int[] size : SIZES) {
+                byte[] data = TestFrames.createNv21(size[0], size[1]);
+                report("sequential", size, measure(encoder, null, data, size));
+                report(threads + " threads", size, measure(null, parallelEncoder, data, size));
+            }
+        } finally {
+            parallelEncoder.close();
+        }
+    }
+    
+    /**
+     * @return average encode time in nanoseconds
+     */
+    private static long measure(JpegEncoder encoder, ParallelJpegEncoder parallelEncoder,
+                                byte[] data, int[] size) {
+        JpegBuffer out = new JpegBuffer(0);
+        long start = 0;
+        for (int i = 0; i < WARM_UP_FRAMES + FRAMES; i++) {
+            if (i == WARM_UP_FRAMES) {
+                start = System.nanoTime();
+            }
+            if (encoder != null) {
+                encoder.encode(data, size[0], size[1], QUALITY, out);
+            } else {
+                parallelEncoder.encode(data, size[0], size[1], QUALITY, out);
+            }
+        }
+        
+        return (System.nanoTime() - start) / FRAMES;
+    }
+    
+    private static void report(String name, int[] size, long nanos) {
+        System.out.println(size[0] + "x" + size[1] + " " + name + ": "
+                + String.format("%.2f ms, %.1f MP/s", nanos / 1000000f,
+                size[0] * size[1] * 1000f / nanos));
+    }
+}
@@ -0,0 +1,64 @@
+package mi.cerdito.cam;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class JpegEncoderTest {
+    @Test
+    public void encode_decodesToSource() throws Exception {
+        byte[] data = TestFrames.createNv21(640, 480);
+        JpegBuffer out = new JpegBuffer(0);
+        
+        int length = new JpegEncoder().encode(data, 640, 480, 90, out);
+        
+        assertEquals(out.getLength(), length);
+        BufferedImage image = TestFrames.decode(out);
+        assertNotNull(image);
+        assertEquals(640, image.getWidth());
+        assertEquals(480, image.getHeight());
+        assertTrue(TestFrames.getMeanError(image, data, 640, 480) < 4);
+    }
+    
+    @Test
+    public void encode_sizeNotMultipleOfMcu() throws Exception {
+        byte[] data = TestFrames.createNv21(100, 62);
+        JpegBuffer out = new JpegBuffer(0);
+        
+        new JpegEncoder().encode(data, 100, 62, 75, out);
+        
+        BufferedImage image = TestFrames.decode(out);
+        assertEquals(100, image.getWidth());
+        assertEquals(62, image.getHeight());
+        assertTrue(TestFrames.getMeanError(image, data, 100, 62) < 6);
+    }
+    
+    @Test
+    public void encode_lowerQualityIsSmaller() {
+        byte[] data = TestFrames.createNv21(320, 240);
+        JpegEncoder encoder = new JpegEncoder();
+        JpegBuffer out = new JpegBuffer(0);
+        
+        int high = encoder.encode(data, 320, 240, 95, out);
+        int low = encoder.encode(data, 320, 240, 20, out);
+        
+        assertTrue(low < high);
+    }
+    
+    @Test
+    public void encode_reusesBuffer() {
+        byte[] data = TestFrames.createNv21(320, 240);
+        JpegEncoder encoder = new JpegEncoder();
+        JpegBuffer out = new JpegBuffer(0);
+        
+        encoder.encode(data, 320, 240, 80, out);
+        byte[] first = out.toByteArray();
+        byte[] buffer = out.getData();
+        encoder.encode(data, 320, 240, 80, out);
+        
+        assertSame(buffer, out.getData());
+        assertArrayEquals(first, out.toByteArray());
+    }
+}
@@ -0,0 +1,122 @@
+package mi.cerdito.cam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class JpegFramePoolTest {
+    @Test
+    public void obtain_reusesReleasedFrame() {
+        JpegFramePool pool = new JpegFramePool(4);
+        JpegFrame frame = pool.obtain(1, 100);
+        frame.getBuffer().write(new byte[10], 0, 10);
+        frame.release();
+        
+        JpegFrame reused = pool.obtain(2, 200);
+        
+        assertSame(frame, reused);
+        assertEquals(2, reused.getSequence());
+        assertEquals(200, reused.getCaptureTime());
+        assertEquals(0, reused.getLength());
+        assertEquals(1, pool.getAllocated());
+    }
+    
+    @Test
+    public void release_keepsRetainedFrame() {
+        JpegFramePool pool = new JpegFramePool(4);
+        JpegFrame frame = pool.obtain(1, 100);
+        frame.retain();
+        frame.release();
+        
+        JpegFrame other = pool.obtain(2, 200);
+        assertNotSame(frame, other);
+        assertEquals(1, frame.getSequence());
+        assertEquals(2, pool.getAllocated());
+        
+        frame.release();
+        assertSame(frame, pool.obtain(3, 300));
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void release_moreOftenThanRetained() {
+        JpegFramePool pool = new JpegFramePool(4);
+        JpegFrame frame = pool.obtain(1, 100);
+        frame.release();
+        
+        frame.release();
+    }
+    
+    @Test
+    public void release_dropsFramesBeyondMaxIdle() {
+        JpegFramePool pool = new JpegFramePool(1);
+        JpegFrame first = pool.obtain(1, 100);
+        JpegFrame second = pool.obtain(2, 200);
+        JpegFrame third = pool.obtain(3, 300);
+        assertEquals(3, pool.getAllocated());
+        
+        first.release();
+        second.release();
+        third.release();
+        
+        assertEquals(1, pool.getAllocated());
+        assertSame(first, pool.obtain(4, 400));
+    }
+    
+    @Test
+    public void release_concurrentSenders() throws Exception {
+        JpegFramePool pool = new JpegFramePool(4);
+        final JpegFrame frame = pool.obtain(1, 100);
+        Thread[] senders = new Thread[4];
+        for (int i = 0; i < senders.length; i++) {
+            frame.retain();
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        frame.retain();
+                        frame.release();
+                    }
+                    frame.release();
+                }
+            };
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        
+        // only the reference of the encoder is left
+        assertEquals(1, pool.getAllocated());
+        assertNotSame(frame, pool.obtain(2, 200));
+        frame.release();
+        assertSame(frame, pool.obtain(3, 300));
+    }
+    
+    @Test
+    public void getPart_rebuiltForReusedFrame() throws Exception {
+        JpegFramePool pool = new JpegFramePool(4);
+        JpegFrame frame = pool.obtain(1, 100);
+        frame.getBuffer().write(new byte[] {1, 2, 3}, 0, 3);
+        assertTrue(toString(frame.getPart()[0]).contains("X-Frame-Seq: 1\r\n"));
+        frame.release();
+        
+        frame = pool.obtain(2, 200);
+        frame.getBuffer().write(new byte[] {4, 5}, 0, 2);
+        ByteBuffer[] part = frame.getPart();
+        
+        String header = toString(part[0]);
+        assertTrue(header.contains("X-Frame-Seq: 2\r\n"));
+        assertTrue(header.contains("Content-Length: 2\r\n"));
+        assertEquals(2, part[1].remaining());
+        assertEquals(4, part[1].get());
+    }
+    
+    private static String toString(ByteBuffer buffer) throws Exception {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        
+        return new String(bytes, "ASCII");
+    }
+}
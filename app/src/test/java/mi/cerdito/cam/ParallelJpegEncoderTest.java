@@ -0,0 +1,89 @@
+package mi.cerdito.cam;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class ParallelJpegEncoderTest {
+    private ParallelJpegEncoder mEncoder;
+    
+    @After
+    public void tearDown() {
+        if (mEncoder != null) {
+            mEncoder.close();
+        }
+    }
+    
+    @Test
+    public void encode_decodesLikeSequential() throws Exception {
+        assertSameAsSequential(640, 480, 4);
+    }
+    
+    @Test
+    public void encode_unevenStrips() throws Exception {
+        // 8 MCU rows in 3 strips of 3, 3 and 2 rows
+        assertSameAsSequential(200, 114, 3);
+    }
+    
+    @Test
+    public void encode_moreThreadsThanRows() throws Exception {
+        assertSameAsSequential(64, 32, 4);
+    }
+    
+    @Test
+    public void encode_writesRestartMarkers() {
+        mEncoder = new ParallelJpegEncoder(4);
+        byte[] data = TestFrames.createNv21(320, 240);
+        JpegBuffer out = new JpegBuffer(0);
+        
+        mEncoder.encode(data, 320, 240, 75, out);
+        
+        // DRI with 4 MCU rows of 20 MCUs per interval, then RST0 to RST2
+        int dri = find(out, 0xDD, 0);
+        assertTrue(dri >= 0);
+        assertEquals(80, ((out.getData()[dri + 4] & 0xff) << 8) | (out.getData()[dri + 5] & 0xff));
+        int position = dri;
+        for (int i = 0; i < 3; i++) {
+            position = find(out, 0xD0 + i, position);
+            assertTrue("RST" + i, position >= 0);
+        }
+        assertEquals(-1, find(out, 0xD3, position));
+    }
+    
+    private void assertSameAsSequential(int width, int height, int threads) throws Exception {
+        mEncoder = new ParallelJpegEncoder(threads);
+        byte[] data = TestFrames.createNv21(width, height);
+        JpegBuffer sequential = new JpegBuffer(0);
+        JpegBuffer parallel = new JpegBuffer(0);
+        
+        new JpegEncoder().encode(data, width, height, 75, sequential);
+        mEncoder.encode(data, width, height, 75, parallel);
+        
+        BufferedImage expected = TestFrames.decode(sequential);
+        BufferedImage actual = TestFrames.decode(parallel);
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+    
+    /**
+     * @return offset of the first marker of a type after an offset, -1 if there is none
+     */
+    private static int find(JpegBuffer jpeg, int marker, int from) {
+        byte[] data = jpeg.getData();
+        for (int i = from; i < jpeg.getLength() - 1; i++) {
+            if ((data[i] & 0xff) == 0xff && (data[i + 1] & 0xff) == marker) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+package mi.cerdito.cam;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+    private final JpegFramePool mPool = new JpegFramePool(4);
+    
+    @Test
+    public void read_framesInOrder() {
+        ReplayBuffer buffer = new ReplayBuffer(1024, 10000);
+        for (int i = 1; i <= 3; i++) {
+            append(buffer, i, 1000 + i * 100, 50 + i);
+        }
+        
+        assertEquals(3, buffer.getLastSequence());
+        assertEquals(1300, buffer.getLastCaptureTime());
+        long sequence = -1;
+        for (int i = 1; i <= 3; i++) {
+            JpegFrame frame = buffer.read(sequence, 0);
+            assertFrame(frame, i, 1000 + i * 100, 50 + i);
+            sequence = frame.getSequence();
+            frame.release();
+        }
+        assertNull(buffer.read(sequence, 0));
+    }
+    
+    @Test
+    public void read_fromCaptureTime() {
+        ReplayBuffer buffer = new ReplayBuffer(1024, 10000);
+        for (int i = 1; i <= 5; i++) {
+            append(buffer, i, i * 100, 10);
+        }
+        
+        JpegFrame frame = buffer.read(-1, 250);
+        
+        assertFrame(frame, 3, 300, 10);
+        frame.release();
+    }
+    
+    @Test
+    public void read_empty() {
+        ReplayBuffer buffer = new ReplayBuffer(1024, 10000);
+        
+        assertEquals(-1, buffer.getLastSequence());
+        assertEquals(0, buffer.getLastCaptureTime());
+        assertNull(buffer.read(-1, 0));
+    }
+    
+    @Test
+    public void append_dropsFramesOlderThanMaxAge() {
+        ReplayBuffer buffer = new ReplayBuffer(1024, 1000);
+        append(buffer, 1, 0, 10);
+        append(buffer, 2, 500, 10);
+        append(buffer, 3, 1600, 10);
+        
+        JpegFrame frame = buffer.read(-1, 0);
+        
+        assertFrame(frame, 3, 1600, 10);
+        frame.release();
+    }
+    
+    @Test
+    public void append_wrapsAroundArena() {
+        ReplayBuffer buffer = new ReplayBuffer(100, 10000);
+        for (int i = 1; i <= 5; i++) {
+            append(buffer, i, i, 40);
+        }
+        
+        // the two newest frames fit, the older ones were overwritten
+        JpegFrame frame = buffer.read(-1, 0);
+        assertFrame(frame, 4, 4, 40);
+        frame.release();
+        frame = buffer.read(4, 0);
+        assertFrame(frame, 5, 5, 40);
+        frame.release();
+        assertNull(buffer.read(5, 0));
+    }
+    
+    @Test
+    public void append_ignoresFrameLargerThanArena() {
+        ReplayBuffer buffer = new ReplayBuffer(100, 10000);
+        append(buffer, 1, 1, 60);
+        append(buffer, 2, 2, 101);
+        
+        assertEquals(1, buffer.getLastSequence());
+        JpegFrame frame = buffer.read(-1, 0);
+        assertFrame(frame, 1, 1, 60);
+        frame.release();
+    }
+    
+    @Test
+    public void append_keepsFrameSize() {
+        ReplayBuffer buffer = new ReplayBuffer(1024, 10000);
+        JpegFrame frame = createFrame(1, 1, 10);
+        frame.setSize(320, 240);
+        buffer.append(frame);
+        frame.release();
+        
+        frame = buffer.read(-1, 0);
+        
+        assertEquals(320, frame.getWidth());
+        assertEquals(240, frame.getHeight());
+        frame.release();
+    }
+    
+    private void append(ReplayBuffer buffer, long sequence, long captureTime, int length) {
+        JpegFrame frame = createFrame(sequence, captureTime, length);
+        buffer.append(frame);
+        frame.release();
+    }
+    
+    private JpegFrame createFrame(long sequence, long captureTime, int length) {
+        JpegFrame frame = mPool.obtain(sequence, captureTime);
+        frame.getBuffer().write(createData(sequence, length), 0, length);
+        
+        return frame;
+    }
+    
+    private static byte[] createData(long sequence, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (sequence * 31 + i);
+        }
+        
+        return data;
+    }
+    
+    private static void assertFrame(JpegFrame frame, long sequence, long captureTime,
+                                    int length) {
+        assertNotNull(frame);
+        assertEquals(sequence, frame.getSequence());
+        assertEquals(captureTime, frame.getCaptureTime());
+        assertEquals(length, frame.getLength());
+        assertArrayEquals(createData(sequence, length),
+                Arrays.copyOf(frame.getData(), frame.getLength()));
+    }
+}
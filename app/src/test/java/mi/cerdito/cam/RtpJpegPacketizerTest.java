@@ -0,0 +1,342 @@
+package mi.cerdito.cam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends frames to a receiver on the loopback interface and rebuilds the JPEG images
+ * from the packets as described in RFC 2435, including the header reconstruction of its
+ * appendix A.
+ */
+public class RtpJpegPacketizerTest {
+    private final static int SSRC = 0x12345678;
+    
+    private final static int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private final static int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private final static int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private final static int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private final static int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private final static int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private final static int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    
+    private final JpegFramePool mPool = new JpegFramePool(2);
+    private DatagramSocket mSender;
+    private DatagramSocket mReceiver;
+    
+    @Before
+    public void setUp() throws Exception {
+        mSender = new DatagramSocket();
+        mReceiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        mReceiver.setSoTimeout(2000);
+        mReceiver.setReceiveBufferSize(1 << 20);
+    }
+    
+    @After
+    public void tearDown() {
+        mSender.close();
+        mReceiver.close();
+    }
+    
+    @Test
+    public void send_reassemblesToSameImage() throws Exception {
+        JpegFrame frame = encode(new JpegEncoder(), 640, 480, 1000);
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 1400);
+        
+        long bytes = send(packetizer, frame);
+        List<byte[]> packets = receiveFrame();
+        
+        assertTrue(packets.size() > 1);
+        long total = 0;
+        for (byte[] packet : packets) {
+            assertTrue(packet.length <= 1400);
+            total += packet.length;
+        }
+        assertEquals(bytes, total);
+        assertSameImage(frame, reassemble(packets, 90000, 1));
+        frame.release();
+    }
+    
+    @Test
+    public void send_restartMarkers() throws Exception {
+        ParallelJpegEncoder encoder = new ParallelJpegEncoder(4);
+        JpegFrame frame;
+        try {
+            frame = mPool.obtain(1, 1000);
+            encoder.encode(TestFrames.createNv21(320, 240), 320, 240, 75, frame.getBuffer());
+        } finally {
+            encoder.close();
+        }
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 1000);
+        
+        send(packetizer, frame);
+        List<byte[]> packets = receiveFrame();
+        
+        // type 1 + 64 with a restart interval of 4 rows of 20 MCUs
+        byte[] jpeg = reassemble(packets, 90000, 65);
+        assertEquals(80, ((packets.get(0)[20] & 0xff) << 8) | (packets.get(0)[21] & 0xff));
+        assertSameImage(frame, jpeg);
+        frame.release();
+    }
+    
+    @Test
+    public void send_sequenceContinuesAcrossFrames() throws Exception {
+        JpegFrame first = encode(new JpegEncoder(), 320, 240, 1000);
+        JpegFrame second = encode(new JpegEncoder(), 320, 240, 1040);
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 1400);
+        
+        send(packetizer, first);
+        List<byte[]> packets = receiveFrame();
+        send(packetizer, second);
+        packets.addAll(receiveFrame());
+        
+        int sequence = getSequence(packets.get(0));
+        for (int i = 1; i < packets.size(); i++) {
+            assertEquals((sequence + i) & 0xffff, getSequence(packets.get(i)));
+        }
+        assertEquals(1040 * 90, getTimestamp(packets.get(packets.size() - 1)));
+        first.release();
+        second.release();
+    }
+    
+    @Test
+    public void send_rejectsOtherImages() throws Exception {
+        JpegFrame frame = mPool.obtain(1, 1000);
+        frame.getBuffer().write(new byte[] {(byte) 0xff, (byte) 0xd8, 1, 2, 3, 4}, 0, 6);
+        RtpJpegPacketizer packetizer = new RtpJpegPacketizer(SSRC, 1400);
+        
+        assertEquals(-1, send(packetizer, frame));
+        frame.release();
+    }
+    
+    private JpegFrame encode(JpegEncoder encoder, int width, int height, long captureTime) {
+        JpegFrame frame = mPool.obtain(1, captureTime);
+        encoder.encode(TestFrames.createNv21(width, height), width, height, 90, frame.getBuffer());
+        
+        return frame;
+    }
+    
+    private long send(RtpJpegPacketizer packetizer, JpegFrame frame) throws Exception {
+        return packetizer.send(frame, mSender, InetAddress.getLoopbackAddress(),
+                mReceiver.getLocalPort());
+    }
+    
+    /**
+     * @return the packets of one frame, up to the one with the marker bit
+     */
+    private List<byte[]> receiveFrame() throws Exception {
+        ArrayList<byte[]> packets = new ArrayList<byte[]>();
+        byte[] buffer = new byte[2048];
+        while (true) {
+            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+            try {
+                mReceiver.receive(datagram);
+            } catch (SocketTimeoutException e) {
+                fail("frame incomplete after " + packets.size() + " packets");
+            }
+            byte[] packet = new byte[datagram.getLength()];
+            System.arraycopy(buffer, 0, packet, 0, packet.length);
+            packets.add(packet);
+            if ((packet[1] & 0x80) != 0) {
+                return packets;
+            }
+        }
+    }
+    
+    /**
+     * Check the RTP and JPEG headers of the packets of a frame and rebuild the image.
+     */
+    private static byte[] reassemble(List<byte[]> packets, long timestamp, int type) {
+        ByteArrayOutputStream scan = new ByteArrayOutputStream();
+        byte[] tables = null;
+        int width = 0;
+        int height = 0;
+        int restartInterval = 0;
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            assertEquals("version", 2, (packet[0] & 0xff) >> 6);
+            assertEquals("payload type", RtpJpegPacketizer.PAYLOAD_TYPE, packet[1] & 0x7f);
+            assertEquals("marker", i == packets.size() - 1, (packet[1] & 0x80) != 0);
+            assertEquals(timestamp, getTimestamp(packet));
+            assertEquals(SSRC, readInt(packet, 8, 4));
+            if (i > 0) {
+                assertEquals((getSequence(packets.get(i - 1)) + 1) & 0xffff, getSequence(packet));
+            }
+            
+            // main JPEG header
+            assertEquals("fragment offset", scan.size(), readInt(packet, 13, 3));
+            assertEquals(type, packet[16] & 0xff);
+            assertEquals("Q", 255, packet[17] & 0xff);
+            width = (packet[18] & 0xff) * 8;
+            height = (packet[19] & 0xff) * 8;
+            int position = 20;
+            
+            if (type >= 64) {
+                restartInterval = readInt(packet, position, 2);
+                // packets are not aligned to intervals: F = L = 1, count 0x3fff
+                assertEquals(0xffff, readInt(packet, position + 2, 2));
+                position += 4;
+            }
+            if (i == 0) {
+                // the quantization tables only come with the first fragment
+                assertEquals(0, readInt(packet, position, 2));
+                int length = readInt(packet, position + 2, 2);
+                assertEquals(128, length);
+                tables = new byte[length];
+                System.arraycopy(packet, position + 4, tables, 0, length);
+                position += 4 + length;
+            }
+            scan.write(packet, position, packet.length - position);
+        }
+        
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        writeHeaders(jpeg, type & 63, width, height, tables, restartInterval);
+        byte[] data = scan.toByteArray();
+        jpeg.write(data, 0, data.length);
+        jpeg.write(0xff);
+        jpeg.write(0xd9);
+        
+        return jpeg.toByteArray();
+    }
+    
+    /**
+     * Write the markers of a baseline image as in MakeHeaders() of RFC 2435 appendix A.
+     */
+    private static void writeHeaders(ByteArrayOutputStream out, int type, int width, int height,
+                                     byte[] tables, int restartInterval) {
+        writeShort(out, 0xffd8);
+        
+        for (int table = 0; table < 2; table++) {
+            writeShort(out, 0xffdb);
+            writeShort(out, 2 + 1 + 64);
+            out.write(table);
+            out.write(tables, table * 64, 64);
+        }
+        
+        if (restartInterval > 0) {
+            writeShort(out, 0xffdd);
+            writeShort(out, 4);
+            writeShort(out, restartInterval);
+        }
+        
+        writeShort(out, 0xffc0);
+        writeShort(out, 17);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(3);
+        out.write(0);
+        out.write(type == 0 ? 0x21 : 0x22);
+        out.write(0);
+        out.write(1);
+        out.write(0x11);
+        out.write(1);
+        out.write(2);
+        out.write(0x11);
+        out.write(1);
+        
+        writeHuffmanTable(out, 0x00, DC_LUMA_BITS, DC_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        writeHuffmanTable(out, 0x01, DC_CHROMA_BITS, DC_VALUES);
+        writeHuffmanTable(out, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+        
+        writeShort(out, 0xffda);
+        writeShort(out, 12);
+        out.write(3);
+        out.write(0);
+        out.write(0x00);
+        out.write(1);
+        out.write(0x11);
+        out.write(2);
+        out.write(0x11);
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+    
+    private static void writeHuffmanTable(ByteArrayOutputStream out, int tableClass,
+                                          int[] bits, int[] values) {
+        writeShort(out, 0xffc4);
+        writeShort(out, 2 + 1 + 16 + values.length);
+        out.write(tableClass);
+        for (int count : bits) {
+            out.write(count);
+        }
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+    
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+    
+    private static int getSequence(byte[] packet) {
+        return readInt(packet, 2, 2);
+    }
+    
+    private static long getTimestamp(byte[] packet) {
+        return readInt(packet, 4, 4) & 0xffffffffL;
+    }
+    
+    private static int readInt(byte[] data, int offset, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        
+        return value;
+    }
+    
+    private static void assertSameImage(JpegFrame frame, byte[] jpeg) throws Exception {
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(frame.getData(), 0,
+                frame.getLength()));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}
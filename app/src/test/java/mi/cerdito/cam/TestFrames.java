@@ -0,0 +1,85 @@
+package mi.cerdito.cam;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic NV21 frames and JPEG decoding for the encoder tests.
+ */
+class TestFrames {
+    /**
+     * Build a frame with a horizontal luma gradient, vertical bars and colored quadrants,
+     * so that both smooth areas and edges are encoded.
+     */
+    static byte[] createNv21(int width, int height) {
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int luma = 16 + x * 219 / Math.max(1, width - 1);
+                if ((x / 24) % 4 == 0) {
+                    luma = 235 - luma / 2;
+                }
+                data[y * width + x] = (byte) luma;
+            }
+        }
+        
+        int chroma = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                boolean right = x >= width / 4;
+                boolean bottom = y >= height / 4;
+                // NV21 stores V before U
+                data[chroma + y * width + 2 * x] = (byte) (right ? 200 : 90);
+                data[chroma + y * width + 2 * x + 1] = (byte) (bottom ? 180 : 70);
+            }
+        }
+        
+        return data;
+    }
+    
+    /**
+     * @return the RGB value of a pixel of an NV21 frame, converted as JFIF does
+     */
+    static int toRgb(byte[] data, int width, int height, int x, int y) {
+        int luma = data[y * width + x] & 0xff;
+        int index = width * height + (y / 2) * width + (x / 2) * 2;
+        int v = (data[index] & 0xff) - 128;
+        int u = (data[index + 1] & 0xff) - 128;
+        
+        int r = clamp(Math.round(luma + 1.402f * v));
+        int g = clamp(Math.round(luma - 0.344136f * u - 0.714136f * v));
+        int b = clamp(Math.round(luma + 1.772f * u));
+        
+        return (r << 16) | (g << 8) | b;
+    }
+    
+    static BufferedImage decode(JpegBuffer jpeg) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(jpeg.getData(), 0, jpeg.getLength()));
+    }
+    
+    /**
+     * @return mean absolute difference per channel between a decoded image and the frame
+     * it was encoded from
+     */
+    static double getMeanError(BufferedImage image, byte[] data, int width, int height) {
+        long sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = toRgb(data, width, height, x, y);
+                int actual = image.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    sum += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                }
+            }
+        }
+        
+        return sum / (3.0 * width * height);
+    }
+    
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(value, 255));
+    }
+}
@@ -0,0 +1,238 @@
+package mi.cerdito.cam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exchanges frames with a client socket on the loopback interface. The server side is
+ * accepted through a channel, like the sockets of MjpegServer.
+ */
+public class WebSocketTest {
+    private final static int MAX_TEXT = 64;
+    private final static byte[] MASK = {0x12, 0x34, 0x56, 0x78};
+    
+    private ServerSocketChannel mServer;
+    private Socket mClient;
+    private DataInputStream mClientIn;
+    private Socket mSocket;
+    private WebSocket mWebSocket;
+    
+    @Before
+    public void setUp() throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mClient = new Socket(InetAddress.getLoopbackAddress(), mServer.socket().getLocalPort());
+        mClient.setSoTimeout(2000);
+        mClientIn = new DataInputStream(mClient.getInputStream());
+        mSocket = mServer.accept().socket();
+        mSocket.setSoTimeout(2000);
+        mWebSocket = new WebSocket(mSocket, MAX_TEXT);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        mClient.close();
+        mSocket.close();
+        mServer.close();
+    }
+    
+    @Test
+    public void readText_unmasksMessage() throws Exception {
+        send(0x81, "hello".getBytes("UTF-8"), true);
+        
+        assertEquals("hello", mWebSocket.readText());
+    }
+    
+    @Test
+    public void readText_joinsFragments() throws Exception {
+        send(0x01, "pau".getBytes("UTF-8"), true);
+        send(0x80, "se".getBytes("UTF-8"), true);
+        
+        assertEquals("pause", mWebSocket.readText());
+    }
+    
+    @Test
+    public void readText_answersPing() throws Exception {
+        send(0x89, new byte[] {1, 2, 3}, true);
+        send(0x81, "resume".getBytes("UTF-8"), true);
+        
+        assertEquals("resume", mWebSocket.readText());
+        assertEquals(0x8a, mClientIn.readUnsignedByte());
+        assertEquals(3, mClientIn.readUnsignedByte());
+        byte[] payload = new byte[3];
+        mClientIn.readFully(payload);
+        assertArrayEquals(new byte[] {1, 2, 3}, payload);
+    }
+    
+    @Test
+    public void readText_skipsBinaryMessage() throws Exception {
+        send(0x82, new byte[200], true);
+        send(0x81, "fps=5".getBytes("UTF-8"), true);
+        
+        assertEquals("fps=5", mWebSocket.readText());
+    }
+    
+    @Test
+    public void readText_closeFrame() throws Exception {
+        send(0x88, new byte[] {0x03, (byte) 0xe8}, true);
+        
+        assertNull(mWebSocket.readText());
+        assertTrue(mWebSocket.isClosed());
+        assertClose(WebSocket.CLOSE_NORMAL);
+    }
+    
+    @Test
+    public void readText_timeoutWithoutFrame() throws Exception {
+        assertNull(mWebSocket.readText(50));
+        assertFalse(mWebSocket.isClosed());
+        
+        send(0x81, "pause".getBytes("UTF-8"), true);
+        
+        assertEquals("pause", mWebSocket.readText(1000));
+    }
+    
+    @Test
+    public void readText_keepsFragmentsAcrossTimeout() throws Exception {
+        send(0x01, "fps".getBytes("UTF-8"), true);
+        
+        assertNull(mWebSocket.readText(50));
+        send(0x80, "=5".getBytes("UTF-8"), true);
+        
+        assertEquals("fps=5", mWebSocket.readText(1000));
+        assertEquals(2000, mSocket.getSoTimeout());
+    }
+    
+    @Test
+    public void readText_messageTooLong() throws Exception {
+        send(0x81, new byte[MAX_TEXT + 1], true);
+        
+        assertNull(mWebSocket.readText());
+        assertClose(WebSocket.CLOSE_TOO_BIG);
+    }
+    
+    @Test
+    public void readText_rejectsUnmaskedFrame() throws Exception {
+        send(0x81, "hello".getBytes("UTF-8"), false);
+        
+        try {
+            mWebSocket.readText();
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        assertClose(WebSocket.CLOSE_PROTOCOL_ERROR);
+    }
+    
+    @Test
+    public void readText_rejectsNegativeLength() throws Exception {
+        OutputStream out = mClient.getOutputStream();
+        out.write(new byte[] {(byte) 0x81, (byte) (0x80 | 127),
+                (byte) 0x80, 0, 0, 0, 0, 0, 0, 1});
+        out.write(MASK);
+        out.flush();
+        
+        try {
+            mWebSocket.readText();
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        assertClose(WebSocket.CLOSE_PROTOCOL_ERROR);
+    }
+    
+    @Test
+    public void readText_endOfStream() throws Exception {
+        mClient.shutdownOutput();
+        
+        assertNull(mWebSocket.readText());
+    }
+    
+    @Test
+    public void writeBinary_extendedLength() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putLong(7);
+        header.flip();
+        byte[] body = new byte[300];
+        body[299] = 42;
+        
+        long bytes = mWebSocket.writeBinary(header, ByteBuffer.wrap(body));
+        
+        assertEquals(4 + 8 + 300, bytes);
+        assertEquals(0x82, mClientIn.readUnsignedByte());
+        assertEquals(126, mClientIn.readUnsignedByte());
+        assertEquals(308, mClientIn.readUnsignedShort());
+        assertEquals(7, mClientIn.readLong());
+        byte[] received = new byte[300];
+        mClientIn.readFully(received);
+        assertArrayEquals(body, received);
+    }
+    
+    @Test
+    public void writeText_smallFrame() throws Exception {
+        mWebSocket.writeText("error x");
+        
+        assertEquals(0x81, mClientIn.readUnsignedByte());
+        assertEquals(7, mClientIn.readUnsignedByte());
+        byte[] received = new byte[7];
+        mClientIn.readFully(received);
+        assertEquals("error x", new String(received, "UTF-8"));
+    }
+    
+    @Test
+    public void close_sentOnce() throws Exception {
+        mWebSocket.close(WebSocket.CLOSE_NORMAL);
+        mWebSocket.close(WebSocket.CLOSE_TOO_BIG);
+        mSocket.close();
+        
+        assertClose(WebSocket.CLOSE_NORMAL);
+        assertEquals(-1, mClientIn.read());
+    }
+    
+    /**
+     * Send one frame from the client.
+     * @param first first byte: FIN flag and opcode
+     */
+    private void send(int first, byte[] payload, boolean masked) throws Exception {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(first);
+        int maskBit = masked ? 0x80 : 0;
+        if (payload.length < 126) {
+            frame.write(maskBit | payload.length);
+        } else {
+            frame.write(maskBit | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        if (masked) {
+            frame.write(MASK);
+            for (int i = 0; i < payload.length; i++) {
+                frame.write(payload[i] ^ MASK[i & 3]);
+            }
+        } else {
+            frame.write(payload);
+        }
+        
+        OutputStream out = mClient.getOutputStream();
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+    
+    private void assertClose(int code) throws Exception {
+        assertEquals(0x88, mClientIn.readUnsignedByte());
+        assertEquals(2, mClientIn.readUnsignedByte());
+        assertEquals(code, mClientIn.readUnsignedShort());
+    }
+}